@@ -0,0 +1,257 @@
+package kt.advance;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Watches the analysis XMLs of the applications and reports which applications
+ * were rewritten by the C analyzer. Bursts of XML changes are coalesced, so a
+ * re-run of the analyzer results in a single notification per application.
+ *
+ * File-system events come from a NIO {@link WatchService}. Only the
+ * directories holding XMLs and the directories on the way to them are
+ * registered, not the source trees, to stay within the limits of watches. The
+ * XML fingerprints of applications that cannot be watched are polled instead
+ * every -Dktls.watch.pollSeconds (default 30, 0 disables).
+ */
+class AnalysisWatcher implements Closeable {
+    private static final Logger LOG = Logger.getLogger("main");
+
+    private final long debounceMillis = Long.getLong("ktls.watch.debounceMillis", 500);
+    private final long pollSeconds = Long.getLong("ktls.watch.pollSeconds", 30);
+
+    private final Consumer<Set<File>> onChange;
+    private final ScheduledExecutorService scheduler = KtExecutors.scheduled("kt-watcher");
+
+    private final Map<File, Long> fingerprints = new ConcurrentHashMap<>();
+    private final Map<WatchKey, File> appByKey = new ConcurrentHashMap<>();
+    /**
+     * applications without working file-system events
+     */
+    private final Set<File> polled = ConcurrentHashMap.newKeySet();
+    private final Set<File> pending = new HashSet<>();
+    private ScheduledFuture<?> flush;
+    private ScheduledFuture<?> polling;
+    /**
+     * service of the current event loop, for closing it; each loop uses its
+     * own
+     */
+    private volatile WatchService watchService;
+
+    /**
+     * @param onChange
+     *            receives the base dirs of the applications to re-read; called
+     *            on the watcher thread
+     */
+    AnalysisWatcher(Consumer<Set<File>> onChange) {
+        this.onChange = onChange;
+    }
+
+    /**
+     * Watches the given applications instead of those watched so far.
+     */
+    synchronized void watch(Collection<File> appDirs) {
+        stopWatching();
+        fingerprints.clear();
+        appByKey.clear();
+        // changes of the applications watched before are of no interest
+        pending.clear();
+        if (flush != null) {
+            flush.cancel(false);
+        }
+        polled.clear();
+        appDirs.forEach(dir -> fingerprints.put(dir, DiagnosticsSnapshot.fingerprint(dir)));
+
+        try {
+            final WatchService service = FileSystems.getDefault().newWatchService();
+            watchService = service;
+            appDirs.forEach(dir -> register(service, dir, dir.toPath()));
+
+            final Thread t = new Thread(() -> processEvents(service), "kt-watch-events");
+            t.setDaemon(true);
+            t.start();
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "file watching is not available, polling only", e);
+            appDirs.forEach(this::poll);
+        }
+    }
+
+    /**
+     * Reports a file change observed by someone else, e.g. by the client.
+     */
+    void touched(File file) {
+        if (isXml(file.toPath())) {
+            UNCPathTool.containingDir(fingerprints.keySet(), file).ifPresent(this::mark);
+        }
+    }
+
+    /**
+     * Registers the given directory, the directories below it that hold XMLs
+     * and the directories between them; falls back to polling the
+     * application if that fails.
+     */
+    private void register(WatchService service, File app, Path root) {
+        final Set<Path> dirs = new HashSet<>();
+        dirs.add(root);
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.filter(AnalysisWatcher::isXml).forEach(xml -> {
+                Path dir = xml.getParent();
+                while (dir != null && dir.startsWith(root) && dirs.add(dir)) {
+                    dir = dir.getParent();
+                }
+            });
+
+            for (final Path dir : dirs) {
+                appByKey.put(dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), app);
+            }
+        } catch (final IOException | UncheckedIOException e) {
+            LOG.log(Level.WARNING, "cannot watch " + root + ", polling " + app, e);
+            poll(app);
+        }
+    }
+
+    /**
+     * Polls the fingerprint of the application from now on.
+     */
+    private synchronized void poll(File app) {
+        if (pollSeconds > 0 && polled.add(app) && polling == null) {
+            polling = scheduler.scheduleWithFixedDelay(this::poll, pollSeconds, pollSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private void processEvents(WatchService service) {
+        try {
+            while (true) {
+                final WatchKey key = service.take();
+                final File app = appByKey.get(key);
+
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    if (app == null) {
+                        continue;
+                    }
+                    if (event.kind() == OVERFLOW) {
+                        mark(app);
+                        continue;
+                    }
+
+                    final Path path = ((Path) key.watchable()).resolve((Path) event.context());
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+                        register(service, app, path);
+                        // XMLs may have been written before the directory was
+                        // registered
+                        mark(app);
+                    } else if (isXml(path)) {
+                        mark(app);
+                    }
+                }
+
+                if (!key.reset()) {
+                    appByKey.remove(key);
+                }
+            }
+        } catch (final InterruptedException | ClosedWatchServiceException e) {
+            LOG.fine("stopped watching");
+        }
+    }
+
+    private void poll() {
+        polled.forEach(dir -> {
+            final Long fingerprint = fingerprints.get(dir);
+            if (fingerprint != null && DiagnosticsSnapshot.fingerprint(dir) != fingerprint) {
+                mark(dir);
+            }
+        });
+    }
+
+    private synchronized void mark(File app) {
+        pending.add(app);
+
+        if (flush != null) {
+            flush.cancel(false);
+        }
+        flush = scheduler.schedule(this::flush, debounceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        final List<File> apps;
+        synchronized (this) {
+            apps = new ArrayList<>(pending);
+            pending.clear();
+        }
+
+        final Set<File> changed = new HashSet<>();
+        for (final File app : apps) {
+            final Long known = fingerprints.get(app);
+            if (known == null) {
+                // no longer watched
+                continue;
+            }
+            final long fingerprint = DiagnosticsSnapshot.fingerprint(app);
+            if (known != fingerprint) {
+                fingerprints.put(app, fingerprint);
+                changed.add(app);
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            LOG.info("analysis changed in " + changed);
+            try {
+                onChange.accept(changed);
+            } catch (final RuntimeException e) {
+                LOG.log(Level.SEVERE, "cannot reload " + changed, e);
+            }
+        }
+    }
+
+    private static boolean isXml(Path path) {
+        return path.getFileName() != null && path.getFileName().toString().endsWith(".xml");
+    }
+
+    @Override
+    public synchronized void close() {
+        scheduler.shutdownNow();
+        stopWatching();
+    }
+
+    private void stopWatching() {
+        if (polling != null) {
+            polling.cancel(false);
+            polling = null;
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (final IOException e) {
+                LOG.log(Level.WARNING, "cannot close watch service", e);
+            }
+        }
+    }
+}
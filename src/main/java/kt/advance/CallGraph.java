@@ -0,0 +1,345 @@
+package kt.advance;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Calls between the functions of one {@link POStore}, by function index; the
+ * functions have to be grouped by file.
+ *
+ * The analysis tells where a function calls, but not what: only the
+ * callsites, caller and line, are kept and saved with the store. The callees
+ * are looked up in the source when they are first asked for, per source file,
+ * and again once the file was modified: the names followed by a parenthesis on
+ * the line of a callsite, outside of comments, literals and preprocessor
+ * directives, that are names of functions of the application, preferring
+ * functions of the same file. Calls through function pointers are not found.
+ */
+final class CallGraph {
+    private static final Logger LOG = Logger.getLogger("main");
+
+    interface Edge {
+        void accept(int function, int line);
+    }
+
+    private final String[] names;
+    private final File[] files;
+
+    /**
+     * calling function and zero-based line of every callsite, ordered by
+     * caller and line
+     */
+    private final int[] callers;
+    private final int[] lines;
+    /**
+     * callsites in each source file, from and to (exclusive)
+     */
+    private final Map<File, int[]> callsByFile = new LinkedHashMap<>();
+
+    /**
+     * functions by name, built on the first lookup
+     */
+    private Map<String, int[]> byName;
+    private final Map<File, Resolved> resolved = new HashMap<>();
+
+    /**
+     * Callees of the callsites of one source file, as read from it
+     */
+    private static final class Resolved {
+        final long modified;
+        /**
+         * callsite and callee of every call found
+         */
+        final int[] calls;
+        final int[] callees;
+
+        Resolved(long modified, int[] calls, int[] callees) {
+            this.modified = modified;
+            this.calls = calls;
+            this.callees = callees;
+        }
+    }
+
+    /**
+     * @param names
+     *            name of every function
+     * @param files
+     *            source file of every function
+     * @param callFunctions
+     *            calling function of every callsite
+     * @param callLines
+     *            zero-based line of every callsite
+     */
+    CallGraph(String[] names, File[] files, int[] callFunctions, int[] callLines, int callCount) {
+        this.names = names;
+        this.files = files;
+
+        final Integer[] order = new Integer[callCount];
+        for (int c = 0; c < callCount; c++) {
+            order[c] = c;
+        }
+        Arrays.sort(order, Comparator.<Integer> comparingInt(c -> callFunctions[c])
+                .thenComparingInt(c -> callLines[c]));
+        callers = new int[callCount];
+        lines = new int[callCount];
+        for (int c = 0; c < callCount; c++) {
+            callers[c] = callFunctions[order[c]];
+            lines[c] = callLines[order[c]];
+        }
+
+        // functions are grouped by file, so are their callsites
+        for (int c = 0; c < callCount; c++) {
+            final int call = c;
+            callsByFile.computeIfAbsent(files[callers[c]], f -> new int[] { call, call })[1] = c + 1;
+        }
+    }
+
+    /**
+     * Passes the functions called on the line of the file.
+     */
+    void callees(File file, int line, IntConsumer callee) {
+        final Resolved calls = resolve(file);
+        if (calls != null) {
+            for (int e = 0; e < calls.calls.length; e++) {
+                if (lines[calls.calls[e]] == line) {
+                    callee.accept(calls.callees[e]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes the caller and the line of every call to the function; reads
+     * the callees of every source file with callsites.
+     */
+    void callers(int function, Edge edge) {
+        for (final File file : callsByFile.keySet()) {
+            final Resolved calls = resolve(file);
+            if (calls == null) {
+                continue;
+            }
+            for (int e = 0; e < calls.calls.length; e++) {
+                if (calls.callees[e] == function) {
+                    edge.accept(callers[calls.calls[e]], lines[calls.calls[e]]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return callees of the callsites of the file, or null if it has none or
+     *         cannot be read
+     */
+    private synchronized Resolved resolve(File file) {
+        final int[] range = callsByFile.get(file);
+        if (range == null) {
+            return null;
+        }
+        final long modified = file.lastModified();
+        final Resolved known = resolved.get(file);
+        if (known != null && known.modified == modified) {
+            return known;
+        }
+
+        final String source;
+        try {
+            // only identifiers and punctuation matter, any encoding will do
+            source = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+        } catch (final IOException e) {
+            LOG.log(Level.FINE, "cannot read " + file + " to find callees", e);
+            return null;
+        }
+
+        final BitSet callLines = new BitSet();
+        for (int c = range[0]; c < range[1]; c++) {
+            if (lines[c] >= 0) {
+                callLines.set(lines[c]);
+            }
+        }
+        final Map<Integer, String[]> called = calledNames(source, callLines);
+
+        final Edges edges = new Edges();
+        for (int c = range[0]; c < range[1]; c++) {
+            for (final String name : called.getOrDefault(lines[c], new String[0])) {
+                final int[] fns = functions().get(name);
+                if (fns != null) {
+                    edges.add(c, fns, files, file);
+                }
+            }
+        }
+
+        final Resolved result = edges.build(modified);
+        resolved.put(file, result);
+        return result;
+    }
+
+    private Map<String, int[]> functions() {
+        if (byName == null) {
+            byName = new HashMap<>();
+            for (int fn = 0; fn < names.length; fn++) {
+                if (names[fn] != null) {
+                    final int[] old = byName.get(names[fn]);
+                    final int[] fns = old == null ? new int[1] : Arrays.copyOf(old, old.length + 1);
+                    fns[fns.length - 1] = fn;
+                    byName.put(names[fn], fns);
+                }
+            }
+        }
+        return byName;
+    }
+
+    /**
+     * Scans C source for names followed by a parenthesis, skipping comments,
+     * string and character literals and preprocessor directives.
+     *
+     * @return the names by zero-based line, for the given lines only
+     */
+    static Map<Integer, String[]> calledNames(String source, BitSet callLines) {
+        final Map<Integer, String[]> result = new HashMap<>();
+        int line = 0;
+        boolean lineStart = true;
+        int i = 0;
+        while (i < source.length()) {
+            final char c = source.charAt(i);
+            if (c == '\n') {
+                line++;
+                lineStart = true;
+                i++;
+            } else if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '#' && lineStart) {
+                // a directive goes on over escaped line ends
+                while (i < source.length() && source.charAt(i) != '\n') {
+                    if (source.charAt(i) == '\\' && i + 1 < source.length() && source.charAt(i + 1) == '\n') {
+                        line++;
+                        i++;
+                    }
+                    i++;
+                }
+            } else if (source.startsWith("//", i)) {
+                while (i < source.length() && source.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (source.startsWith("/*", i)) {
+                final int end = source.indexOf("*/", i + 2);
+                final int stop = end < 0 ? source.length() : end + 2;
+                for (; i < stop; i++) {
+                    if (source.charAt(i) == '\n') {
+                        line++;
+                    }
+                }
+                lineStart = false;
+            } else if (c == '"' || c == '\'') {
+                i++;
+                while (i < source.length() && source.charAt(i) != c && source.charAt(i) != '\n') {
+                    if (source.charAt(i) == '\\' && i + 1 < source.length() && source.charAt(i + 1) == '\n') {
+                        line++;
+                    }
+                    i += source.charAt(i) == '\\' ? 2 : 1;
+                }
+                i++;
+                lineStart = false;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                final int start = i;
+                while (i < source.length() && Character.isJavaIdentifierPart(source.charAt(i))) {
+                    i++;
+                }
+                int paren = i;
+                while (paren < source.length() && Character.isWhitespace(source.charAt(paren))) {
+                    paren++;
+                }
+                if (callLines.get(line) && paren < source.length() && source.charAt(paren) == '(') {
+                    final String[] old = result.getOrDefault(line, new String[0]);
+                    final String[] names = Arrays.copyOf(old, old.length + 1);
+                    names[old.length] = source.substring(start, i);
+                    result.put(line, names);
+                }
+                lineStart = false;
+            } else {
+                i++;
+                lineStart = false;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Growing call arrays, without repeated calls
+     */
+    private static final class Edges {
+        private int size;
+        private int[] calls = new int[16];
+        private int[] callees = new int[16];
+
+        /**
+         * Adds calls to the functions of the name, only to the one of the
+         * caller's file if there is one.
+         */
+        void add(int call, int[] fns, File[] files, File callerFile) {
+            boolean local = false;
+            for (final int fn : fns) {
+                local |= files[fn].equals(callerFile);
+            }
+            for (final int fn : fns) {
+                if (!local || files[fn].equals(callerFile)) {
+                    add(call, fn);
+                }
+            }
+        }
+
+        private void add(int call, int callee) {
+            // calls of a callsite are added one after the other
+            for (int e = size - 1; e >= 0 && calls[e] == call; e--) {
+                if (callees[e] == callee) {
+                    return;
+                }
+            }
+            if (size == calls.length) {
+                calls = Arrays.copyOf(calls, size * 2);
+                callees = Arrays.copyOf(callees, size * 2);
+            }
+            calls[size] = call;
+            callees[size] = callee;
+            size++;
+        }
+
+        Resolved build(long modified) {
+            return new Resolved(modified, Arrays.copyOf(calls, size), Arrays.copyOf(callees, size));
+        }
+    }
+
+    /**
+     * Writes the callsites; the callees are looked up again after reading.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(callers.length);
+        for (int c = 0; c < callers.length; c++) {
+            out.writeInt(callers[c]);
+            out.writeInt(lines[c]);
+        }
+    }
+
+    static CallGraph read(ByteBuffer in, String[] names, File[] files) {
+        final int size = in.getInt();
+        final int[] callers = new int[size];
+        final int[] lines = new int[size];
+        for (int c = 0; c < size; c++) {
+            callers[c] = in.getInt();
+            lines[c] = in.getInt();
+        }
+        return new CallGraph(names, files, callers, lines, size);
+    }
+}
@@ -0,0 +1,123 @@
+package kt.advance;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.eclipse.lsp4j.MessageParams;
+import org.eclipse.lsp4j.MessageType;
+import org.eclipse.lsp4j.services.LanguageClient;
+
+/**
+ * Forwards log records to the client's output window without ever blocking the
+ * thread that logs. Records go to a bounded buffer and are sent from a
+ * background thread, at most -Dktls.clientLog.perSecond (default 20) of them
+ * per second; records that do not fit are dropped and counted, and the client
+ * is told how many were lost.
+ *
+ * Only records of -Dktls.clientLog.level (default WARNING) and above are
+ * forwarded; the log file gets everything.
+ */
+class ClientLogHandler extends Handler {
+
+    private final LanguageClient client;
+    private final BlockingQueue<LogRecord> buffer = new ArrayBlockingQueue<>(
+            Integer.getInteger("ktls.clientLog.capacity", 256));
+    private final int perSecond = Integer.getInteger("ktls.clientLog.perSecond", 20);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread sender;
+
+    ClientLogHandler(LanguageClient client) {
+        this.client = client;
+        setLevel(Level.parse(System.getProperty("ktls.clientLog.level", Level.WARNING.getName())));
+
+        sender = new Thread(this::send, "kt-client-log");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (isLoggable(record) && !buffer.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void send() {
+        long windowStart = System.nanoTime();
+        int sent = 0;
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final LogRecord record = buffer.poll(1, TimeUnit.SECONDS);
+
+                final long now = System.nanoTime();
+                if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+                    windowStart = now;
+                    sent = 0;
+                    reportDropped();
+                }
+
+                if (record == null) {
+                    continue;
+                }
+                if (sent >= perSecond) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+
+                client.logMessage(new MessageParams(messageType(record.getLevel().intValue()), format(record)));
+                sent++;
+            }
+        } catch (final InterruptedException e) {
+            // closed
+        }
+    }
+
+    private void reportDropped() {
+        final long count = dropped.getAndSet(0);
+        if (count > 0) {
+            client.logMessage(new MessageParams(MessageType.Warning,
+                    count + " log messages were not forwarded, see the log file"));
+        }
+    }
+
+    private static String format(LogRecord record) {
+        String message = record.getMessage();
+
+        if (record.getThrown() != null) {
+            final StringWriter trace = new StringWriter();
+
+            record.getThrown().printStackTrace(new PrintWriter(trace));
+            message += "\n" + trace;
+        }
+        return message;
+    }
+
+    private static MessageType messageType(int level) {
+        if (level >= Level.SEVERE.intValue()) {
+            return MessageType.Error;
+        } else if (level >= Level.WARNING.intValue()) {
+            return MessageType.Warning;
+        } else if (level >= Level.INFO.intValue()) {
+            return MessageType.Info;
+        } else {
+            return MessageType.Log;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() throws SecurityException {
+        sender.interrupt();
+    }
+}
@@ -0,0 +1,127 @@
+package kt.advance;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.eclipse.lsp4j.DiagnosticSeverity;
+
+/**
+ * Selects the POs to publish by status, predicate and level. Immutable; the
+ * {@link POStore} evaluates a filter once into a bitset over its rows.
+ */
+final class DiagnosticFilter {
+    private static final Logger LOG = Logger.getLogger("main");
+
+    static final DiagnosticFilter ALL = new DiagnosticFilter(null, null, true, true);
+
+    /**
+     * accepted severities, which stand for the PO status; null for all
+     */
+    private final Set<DiagnosticSeverity> severities;
+    /**
+     * accepted predicate types; null for all
+     */
+    private final Set<String> predicates;
+    private final boolean primary;
+    private final boolean secondary;
+
+    private DiagnosticFilter(Set<DiagnosticSeverity> severities, Set<String> predicates, boolean primary,
+            boolean secondary) {
+        this.severities = severities;
+        this.predicates = predicates;
+        this.primary = primary;
+        this.secondary = secondary;
+    }
+
+    /**
+     * @param statuses
+     *            violation, open, dead, discharged; null or empty for all
+     * @param predicates
+     *            predicate types, e.g. not-null; null or empty for all
+     * @param levels
+     *            primary, secondary; null or empty for both
+     */
+    static DiagnosticFilter of(Collection<String> statuses, Collection<String> predicates,
+            Collection<String> levels) {
+
+        Set<DiagnosticSeverity> severities = null;
+        if (statuses != null && !statuses.isEmpty()) {
+            severities = new HashSet<>();
+            for (final String status : statuses) {
+                final DiagnosticSeverity severity = severity(status);
+                if (severity == null) {
+                    LOG.warning("unknown PO status " + status);
+                } else {
+                    severities.add(severity);
+                }
+            }
+        }
+
+        final boolean allLevels = levels == null || levels.isEmpty();
+        final DiagnosticFilter filter = new DiagnosticFilter(
+                severities,
+                predicates == null || predicates.isEmpty()
+                        ? null
+                        : Collections.unmodifiableSet(new HashSet<>(predicates)),
+                allLevels || levels.contains("primary"),
+                allLevels || levels.contains("secondary"));
+
+        return filter.equals(ALL) ? ALL : filter;
+    }
+
+    /**
+     * Status of a PO as told by {@link POMapper#severity}
+     */
+    private static DiagnosticSeverity severity(String status) {
+        switch (status) {
+        case "violation":
+            return DiagnosticSeverity.Error;
+        case "dead":
+            return DiagnosticSeverity.Warning;
+        case "discharged":
+            return DiagnosticSeverity.Information;
+        case "open":
+            return DiagnosticSeverity.Hint;
+        default:
+            return null;
+        }
+    }
+
+    boolean acceptsPredicate(String predicate) {
+        return predicates == null || predicates.contains(predicate);
+    }
+
+    boolean accepts(int severity, boolean isPrimary) {
+        return (isPrimary ? primary : secondary)
+                && (severities == null || severities.contains(DiagnosticSeverity.forValue(severity)));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof DiagnosticFilter)) {
+            return false;
+        }
+        final DiagnosticFilter other = (DiagnosticFilter) obj;
+        return Objects.equals(severities, other.severities)
+                && Objects.equals(predicates, other.predicates)
+                && primary == other.primary
+                && secondary == other.secondary;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(severities, predicates, primary, secondary);
+    }
+
+    @Override
+    public String toString() {
+        return "statuses " + (severities == null ? "all" : severities)
+                + ", predicates " + (predicates == null ? "all" : predicates)
+                + ", primary " + primary
+                + ", secondary " + secondary;
+    }
+}
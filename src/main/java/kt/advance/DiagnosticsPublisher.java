@@ -0,0 +1,230 @@
+package kt.advance;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.PublishDiagnosticsParams;
+import org.eclipse.lsp4j.services.LanguageClient;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Sends diagnostics to the client from a background thread, so the threads
+ * handling requests never wait for the client.
+ *
+ * Files are queued rather than published right away. A file queued again
+ * before it was sent is published only once, with its latest diagnostics, and
+ * open files are sent before all others. Instead of sleeping after large
+ * files, the output is paced to -Dktls.publish.bytesPerSecond (default 4 MiB).
+ * A file whose diagnostics hash the same as the last ones sent is skipped.
+ */
+class DiagnosticsPublisher implements Closeable {
+    private static final Logger LOG = Logger.getLogger("main");
+
+    /**
+     * rough JSON size of a diagnostic besides its message
+     */
+    private static final int DIAGNOSTIC_OVERHEAD = 160;
+
+    private final long bytesPerSecond = Long.getLong("ktls.publish.bytesPerSecond", 4 << 20);
+
+    private final CompletableFuture<LanguageClient> client;
+    private final Function<File, Optional<List<Diagnostic>>> diagnostics;
+    private final Predicate<File> isOpen;
+    private final ScheduledExecutorService scheduler = KtExecutors.scheduled("kt-publish");
+
+    /**
+     * hash of the diagnostics last sent, for the files the client has
+     * diagnostics for
+     */
+    private final Map<File, Long> published = new ConcurrentHashMap<>();
+    /**
+     * queued open files, sent before the {@link #queue}
+     */
+    private final Set<File> urgent = new LinkedHashSet<>();
+    private final Set<File> queue = new LinkedHashSet<>();
+    private boolean draining;
+    /**
+     * System.nanoTime() before which nothing else may be sent
+     */
+    private long nextSend = System.nanoTime();
+
+    /**
+     * @param diagnostics
+     *            current diagnostics of a file; asked when the file is sent,
+     *            not when it is queued
+     * @param isOpen
+     *            tells files open in the editor
+     */
+    DiagnosticsPublisher(CompletableFuture<LanguageClient> client,
+            Function<File, Optional<List<Diagnostic>>> diagnostics,
+            Predicate<File> isOpen) {
+        this.client = client;
+        this.diagnostics = diagnostics;
+        this.isOpen = isOpen;
+    }
+
+    Set<File> published() {
+        return Collections.unmodifiableSet(published.keySet());
+    }
+
+    /**
+     * Moves a queued publish of a file that was just opened to the front.
+     */
+    synchronized void opened(File file) {
+        if (queue.remove(file)) {
+            urgent.add(file);
+        }
+    }
+
+    synchronized void closed(File file) {
+        if (urgent.remove(file)) {
+            queue.add(file);
+        }
+    }
+
+    synchronized void publish(Collection<File> files) {
+        for (final File file : files) {
+            if (!urgent.contains(file)) {
+                (isOpen.test(file) ? urgent : queue).add(file);
+            }
+        }
+        drainLater(nextSend - System.nanoTime());
+    }
+
+    void publish(File file) {
+        publish(Collections.singleton(file));
+    }
+
+    /**
+     * Drops a queued publish of the file, e.g. because its diagnostics were
+     * cleared in the meantime.
+     */
+    synchronized void cancel(File file) {
+        urgent.remove(file);
+        queue.remove(file);
+    }
+
+    /**
+     * Cancels a queued publish of the file and removes its diagnostics from
+     * the client, if any were sent.
+     */
+    void clear(File file) {
+        cancel(file);
+        scheduler.execute(() -> {
+            if (published.remove(file) != null) {
+                client.join().publishDiagnostics(
+                    new PublishDiagnosticsParams(file.toURI().toString(), Collections.emptyList()));
+            }
+        });
+    }
+
+    private void drainLater(long delayNanos) {
+        if (!draining && !(urgent.isEmpty() && queue.isEmpty())) {
+            draining = true;
+            scheduler.schedule(this::drain, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void drain() {
+        final File file;
+        synchronized (this) {
+            draining = false;
+            file = next();
+            if (file == null) {
+                return;
+            }
+        }
+
+        long bytes = 0;
+        try {
+            bytes = send(file);
+        } catch (final RuntimeException e) {
+            LOG.log(Level.WARNING, "cannot publish " + file, e);
+        }
+
+        synchronized (this) {
+            final long now = System.nanoTime();
+            nextSend = Math.max(nextSend, now) + TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+            drainLater(nextSend - now);
+        }
+    }
+
+    /**
+     * @return the oldest queued open file, or the oldest queued file
+     */
+    private File next() {
+        final Set<File> from = urgent.isEmpty() ? queue : urgent;
+        if (from.isEmpty()) {
+            return null;
+        }
+        final File file = from.iterator().next();
+        from.remove(file);
+        return file;
+    }
+
+    /**
+     * @return estimated number of bytes sent
+     */
+    private long send(File file) {
+        final Optional<List<Diagnostic>> list = diagnostics.apply(file);
+        if (!list.isPresent()) {
+            return 0;
+        }
+
+        final long hash = hash(list.get());
+        if (Objects.equals(published.get(file), hash)) {
+            LOG.fine("unchanged " + file);
+            return 0;
+        }
+
+        long bytes = 0;
+        for (final Diagnostic diagnostic : list.get()) {
+            bytes += diagnostic.getMessage().length() + DIAGNOSTIC_OVERHEAD;
+        }
+
+        client.join().publishDiagnostics(new PublishDiagnosticsParams(file.toURI().toString(), list.get()));
+        published.put(file, hash);
+        LOG.info("Published " + list.get().size() + " errors from " + file);
+        return bytes;
+    }
+
+    /**
+     * Hashes what the client shows of the diagnostics
+     */
+    private static long hash(List<Diagnostic> list) {
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (final Diagnostic diagnostic : list) {
+            hasher.putInt(diagnostic.getSeverity().getValue())
+                    .putInt(diagnostic.getRange().getStart().getLine())
+                    .putString(diagnostic.getSource(), StandardCharsets.UTF_8)
+                    .putString(diagnostic.getCode(), StandardCharsets.UTF_8)
+                    .putString(diagnostic.getMessage(), StandardCharsets.UTF_8);
+        }
+        return hasher.putInt(list.size()).hash().asLong();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,336 @@
+package kt.advance;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Compact binary copy of the {@link POStore} of every application, keyed
+ * by a fingerprint of the application's XML files. Lets the server skip
+ * re-parsing applications whose analysis results did not change since the last
+ * run.
+ *
+ * The file is memory-mapped and only its index is read on load; the store of
+ * an application is read from the mapping when the application is asked for,
+ * and the snapshot forgets about it afterwards. The index is at the end of
+ * the file, its position in the last four bytes.
+ *
+ * Stores keep reading from the mapping, and a mapping cannot be released, so
+ * a file is never overwritten: every save writes the next generation,
+ * &lt;name&gt;.&lt;n&gt;.bin, and the newest one is loaded. Older generations
+ * are deleted where the platform lets go of them, or else on the next load.
+ */
+class DiagnosticsSnapshot {
+    private static final Logger LOG = Logger.getLogger("main");
+
+    private static final int MAGIC = 0x4b544c53; // "KTLS"
+    private static final int VERSION = 8;
+    private static final String SUFFIX = ".bin";
+
+    /**
+     * position of an application's store in the mapped file
+     */
+    private static final class Stored {
+        final long fingerprint;
+        final int position;
+
+        Stored(long fingerprint, int position) {
+            this.fingerprint = fingerprint;
+            this.position = position;
+        }
+    }
+
+    static class AppEntry {
+        final long fingerprint;
+        final POStore store;
+
+        AppEntry(long fingerprint, POStore store) {
+            this.fingerprint = fingerprint;
+            this.store = store;
+        }
+    }
+
+    /**
+     * applications not asked for yet
+     */
+    private final Map<File, Stored> apps;
+    private final ByteBuffer buffer;
+
+    private DiagnosticsSnapshot(Map<File, Stored> apps, ByteBuffer buffer) {
+        this.apps = apps;
+        this.buffer = buffer;
+    }
+
+    static DiagnosticsSnapshot empty() {
+        return new DiagnosticsSnapshot(Collections.emptyMap(), null);
+    }
+
+    /**
+     * @return cached diagnostics of the application, or null if there are none
+     *         or the application's XMLs changed since they were cached
+     */
+    POStore get(File appBaseDir, long fingerprint) {
+        // each application is asked for once per load
+        final Stored stored = apps.remove(appBaseDir);
+        if (stored == null || stored.fingerprint != fingerprint) {
+            return null;
+        }
+
+        try {
+            final ByteBuffer in = buffer.duplicate();
+            in.position(stored.position);
+            return POStore.read(in);
+        } catch (final RuntimeException e) {
+            LOG.log(Level.WARNING, "ignoring unreadable snapshot of " + appBaseDir, e);
+            return null;
+        }
+    }
+
+    /**
+     * Hashes relative path, size and modification time of every XML file under
+     * the application base dir. Much cheaper than reading them.
+     */
+    static long fingerprint(File appBaseDir) {
+        final Path base = appBaseDir.toPath();
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+
+        try (Stream<Path> paths = Files.walk(base)) {
+            paths.filter(p -> p.getFileName().toString().endsWith(".xml"))
+                    .sorted()
+                    .forEach(p -> {
+                        final File f = p.toFile();
+                        hasher.putString(base.relativize(p).toString(), StandardCharsets.UTF_8);
+                        hasher.putLong(f.length());
+                        hasher.putLong(f.lastModified());
+                    });
+        } catch (final IOException | UncheckedIOException e) {
+            LOG.log(Level.WARNING, "cannot fingerprint " + appBaseDir, e);
+            return 0;
+        }
+
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * @return snapshot file for the given workspace root, the name its
+     *         generations are numbered after; the directory can be set with
+     *         -Dktls.snapshotDir
+     */
+    static File snapshotFile(File workspaceRoot) {
+        final String dir = System.getProperty(
+            "ktls.snapshotDir",
+            new File(System.getProperty("user.home"), ".kt-ls/snapshots").getPath());
+
+        final String name = Hashing.murmur3_128()
+                .hashString(workspaceRoot.getAbsolutePath(), StandardCharsets.UTF_8)
+                .toString();
+
+        return new File(dir, name + SUFFIX);
+    }
+
+    /**
+     * Loads the newest generation of the snapshot and deletes the others.
+     */
+    static DiagnosticsSnapshot load(File snapshot) {
+        final List<File> generations = generations(snapshot);
+        if (generations.isEmpty()) {
+            return empty();
+        }
+
+        final File newest = generations.get(generations.size() - 1);
+        deleteOlder(snapshot, newest);
+        try {
+            return read(map(newest));
+        } catch (final IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "ignoring unreadable snapshot " + newest, e);
+            return empty();
+        }
+    }
+
+    /**
+     * @return generations of the snapshot, oldest first
+     */
+    private static List<File> generations(File snapshot) {
+        final File[] files = snapshot.getParentFile().listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+
+        final List<File> generations = new ArrayList<>();
+        for (final File file : files) {
+            if (generation(snapshot, file) >= 0) {
+                generations.add(file);
+            }
+        }
+        generations.sort(Comparator.comparingLong(file -> generation(snapshot, file)));
+        return generations;
+    }
+
+    /**
+     * @return n of a file named &lt;name&gt;.&lt;n&gt;.bin, or -1 if the file
+     *         is not a generation of the snapshot
+     */
+    private static long generation(File snapshot, File file) {
+        final String stem = stem(snapshot) + ".";
+        final String name = file.getName();
+        if (!name.startsWith(stem) || !name.endsWith(SUFFIX) || name.length() <= stem.length() + SUFFIX.length()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(stem.length(), name.length() - SUFFIX.length()));
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String stem(File snapshot) {
+        final String name = snapshot.getName();
+        return name.endsWith(SUFFIX) ? name.substring(0, name.length() - SUFFIX.length()) : name;
+    }
+
+    /**
+     * Deletes the generations before the given one, and the snapshot file
+     * itself as written before there were generations. A generation still
+     * mapped by this process cannot be deleted on Windows; that is left to the
+     * next load.
+     */
+    private static void deleteOlder(File snapshot, File current) {
+        final long keep = generation(snapshot, current);
+        final List<File> old = new ArrayList<>();
+        old.add(snapshot);
+        generations(snapshot).stream().filter(file -> generation(snapshot, file) < keep).forEach(old::add);
+
+        for (final File file : old) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (final IOException e) {
+                LOG.log(Level.FINE, "cannot delete old snapshot " + file + " yet", e);
+            }
+        }
+    }
+
+    private static MappedByteBuffer map(File snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static DiagnosticsSnapshot read(ByteBuffer in) throws IOException {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException("unsupported snapshot format");
+        }
+
+        final ByteBuffer index = in.duplicate();
+        index.position(in.getInt(in.limit() - 4));
+
+        final Map<File, Stored> apps = new ConcurrentHashMap<>();
+        int appCount = index.getInt();
+        while (appCount-- > 0) {
+            final File baseDir = new File(readString(index));
+            final long fingerprint = index.getLong();
+            apps.put(baseDir, new Stored(fingerprint, index.getInt()));
+        }
+
+        return new DiagnosticsSnapshot(apps, in);
+    }
+
+    /**
+     * Writes the next generation of the snapshot to a temporary file first and
+     * then moves it in place, so a crashed or concurrent write never leaves a
+     * truncated snapshot behind.
+     */
+    static void save(File snapshot, Map<File, AppEntry> apps) {
+        Path tmp = null;
+        try {
+            Files.createDirectories(snapshot.getParentFile().toPath());
+            tmp = Files.createTempFile(snapshot.getParentFile().toPath(), snapshot.getName(), ".tmp");
+
+            final List<File> generations = generations(snapshot);
+            final File next = new File(snapshot.getParentFile(), stem(snapshot) + "."
+                    + (generations.isEmpty() ? 0 : generation(snapshot, generations.get(generations.size() - 1)) + 1)
+                    + SUFFIX);
+
+            final Map<POStore, int[]> written = new HashMap<>();
+            try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+
+                final Map<File, Stored> index = new HashMap<>();
+                for (final Map.Entry<File, AppEntry> app : apps.entrySet()) {
+                    index.put(app.getKey(), new Stored(app.getValue().fingerprint, out.size()));
+                    written.put(app.getValue().store, app.getValue().store.write(out));
+                }
+
+                final int indexPosition = out.size();
+                out.writeInt(index.size());
+                for (final Map.Entry<File, Stored> app : index.entrySet()) {
+                    writeString(out, app.getKey().getPath());
+                    out.writeLong(app.getValue().fingerprint);
+                    out.writeInt(app.getValue().position);
+                }
+                out.writeInt(indexPosition);
+            }
+
+            // a new name, the generation a store may have mapped stays as is
+            Files.move(tmp, next.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            LOG.info("saved snapshot " + next);
+
+            // the stores read unrendered expressions from the file from now on
+            final ByteBuffer buffer = map(next);
+            written.forEach((store, at) -> store.saved(buffer, at));
+            deleteOlder(snapshot, next);
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "cannot save snapshot " + snapshot, e);
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (final IOException e) {
+                    LOG.log(Level.WARNING, "cannot delete " + tmp, e);
+                }
+            }
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static void skipString(ByteBuffer in) {
+        final int length = in.getInt();
+        in.position(in.position() + length);
+    }
+
+    static String readString(ByteBuffer in) {
+        final byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
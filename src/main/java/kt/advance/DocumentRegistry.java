@@ -0,0 +1,145 @@
+package kt.advance;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Documents open in the editor. Writers are serialized and replace an
+ * immutable state as a whole, so readers on any thread get a consistent
+ * snapshot without locking or copying. Since {@link Rope}s are immutable too,
+ * a snapshot stays valid while the documents are edited.
+ *
+ * Documents with a file URI can be looked up by their normalized {@link File},
+ * the same kind of key the PO index uses.
+ */
+class DocumentRegistry {
+
+    private static final class State {
+        final ImmutableMap<URI, VersionedContent> byUri;
+        final ImmutableMap<File, URI> byFile;
+
+        State(Map<URI, VersionedContent> byUri, Map<File, URI> byFile) {
+            this.byUri = ImmutableMap.copyOf(byUri);
+            this.byFile = ImmutableMap.copyOf(byFile);
+        }
+    }
+
+    private volatile State state = new State(ImmutableMap.of(), ImmutableMap.of());
+
+    /**
+     * @return absolute, normalized file of a file URI, or null for other
+     *         schemes, e.g. old git versions shown in a diff view
+     */
+    static File file(URI uri) {
+        if (!"file".equals(uri.getScheme())) {
+            return null;
+        }
+        return normalize(UNCPathTool.uri2file(uri));
+    }
+
+    static File normalize(File file) {
+        return file.toPath().toAbsolutePath().normalize().toFile();
+    }
+
+    synchronized void open(URI uri, VersionedContent content) {
+        final Map<URI, VersionedContent> byUri = new HashMap<>(state.byUri);
+        final Map<File, URI> byFile = new HashMap<>(state.byFile);
+        byUri.put(uri, content);
+        final File file = file(uri);
+        if (file != null) {
+            byFile.put(file, uri);
+        }
+        state = new State(byUri, byFile);
+    }
+
+    /**
+     * Applies an edit if the document is open and the version is newer than
+     * the current one.
+     *
+     * @param edit
+     *            gets the current content, returns the content of the new
+     *            version
+     * @return false if the edit was ignored
+     */
+    synchronized boolean update(URI uri, int version, UnaryOperator<VersionedContent> edit) {
+        final VersionedContent existing = state.byUri.get(uri);
+        if (existing == null || version <= existing.version) {
+            return false;
+        }
+
+        final Map<URI, VersionedContent> byUri = new HashMap<>(state.byUri);
+        byUri.put(uri, edit.apply(existing));
+        state = new State(byUri, state.byFile);
+        return true;
+    }
+
+    /**
+     * Forgets the line shifts of the files, since their analysis is up to date
+     * again.
+     */
+    synchronized void resetLines(Collection<File> files) {
+        final Map<URI, VersionedContent> byUri = new HashMap<>(state.byUri);
+        for (final File file : files) {
+            final URI uri = state.byFile.get(file);
+            final VersionedContent existing = uri == null ? null : byUri.get(uri);
+            if (existing != null && !existing.lines.isIdentity()) {
+                byUri.put(uri, new VersionedContent(existing.content, LineMap.IDENTITY, existing.version));
+            }
+        }
+        state = new State(byUri, state.byFile);
+    }
+
+    synchronized void close(URI uri) {
+        final Map<URI, VersionedContent> byUri = new HashMap<>(state.byUri);
+        final Map<File, URI> byFile = new HashMap<>(state.byFile);
+        byUri.remove(uri);
+        final File file = file(uri);
+        if (file != null) {
+            byFile.remove(file);
+        }
+        state = new State(byUri, byFile);
+    }
+
+    Optional<VersionedContent> get(URI uri) {
+        return Optional.ofNullable(state.byUri.get(uri));
+    }
+
+    Optional<VersionedContent> get(File file) {
+        final State s = state;
+        final URI uri = s.byFile.get(file);
+        return uri == null ? Optional.empty() : Optional.ofNullable(s.byUri.get(uri));
+    }
+
+    boolean isOpen(File file) {
+        return state.byFile.containsKey(file);
+    }
+
+    /**
+     * @return snapshot of the open documents
+     */
+    ImmutableMap<URI, VersionedContent> documents() {
+        return state.byUri;
+    }
+
+    /**
+     * @return snapshot of the open documents having a file URI
+     */
+    ImmutableSet<File> files() {
+        return state.byFile.keySet();
+    }
+
+    /**
+     * @return snapshot of the URIs of {@link #files()}
+     */
+    ImmutableSet<URI> fileUris() {
+        return ImmutableSet.copyOf(state.byFile.values());
+    }
+}
@@ -0,0 +1,68 @@
+package kt.advance;
+
+import java.io.File;
+
+import org.eclipse.lsp4j.DiagnosticSeverity;
+
+/**
+ * A C function of an application with the number of its POs by status, as
+ * aggregated by the {@link POStore} while the analysis is loaded. Immutable.
+ */
+final class FunctionSummary {
+
+    final String name;
+    final File file;
+    /**
+     * zero-based line of the first PO of the function; the analysis does not
+     * tell where the function itself starts
+     */
+    final int line;
+    /**
+     * PO counts indexed by severity value - 1
+     */
+    private final int[] counts;
+
+    FunctionSummary(String name, File file, int line, int[] counts) {
+        this.name = name;
+        this.file = file;
+        this.line = line;
+        this.counts = counts;
+    }
+
+    /**
+     * @param status
+     *            severity standing for the PO status, see
+     *            {@link POMapper#severity}
+     */
+    int count(DiagnosticSeverity status) {
+        return counts[status.getValue() - 1];
+    }
+
+    int open() {
+        return count(DiagnosticSeverity.Hint);
+    }
+
+    int total() {
+        int total = 0;
+        for (final int count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return e.g. "2 violations, 5 open, 0 dead, 31 discharged"
+     */
+    String describe() {
+        final int violations = count(DiagnosticSeverity.Error);
+        return violations + (violations == 1 ? " violation, " : " violations, ")
+                + open() + " open, "
+                + count(DiagnosticSeverity.Warning) + " dead, "
+                + count(DiagnosticSeverity.Information) + " discharged";
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + describe() + ")";
+    }
+}
@@ -0,0 +1,114 @@
+package kt.advance;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the thread pools of the server: every pool has a name, a fixed
+ * number of daemon threads and is registered for {@link #metrics()}.
+ *
+ * Pool sizes are configured with system properties:
+ * <ul>
+ * <li>-Dktls.rpcThreads (default 2): JSON-RPC message loop</li>
+ * <li>-Dktls.rpcQueue (default 1024): tasks waiting for the message loop</li>
+ * <li>-Dktls.analysisThreads (default: number of CPUs): reading and
+ * converting XMLs</li>
+ * </ul>
+ */
+final class KtExecutors {
+
+    private static final Map<String, ExecutorService> pools = new ConcurrentHashMap<>();
+
+    private KtExecutors() {
+    }
+
+    /**
+     * Runs the JSON-RPC message loop; the caller runs the task when the queue
+     * is full.
+     */
+    static ExecutorService rpc() {
+        return register("kt-rpc", new ThreadPoolExecutor(
+                Integer.getInteger("ktls.rpcThreads", 2),
+                Integer.getInteger("ktls.rpcThreads", 2),
+                0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(Integer.getInteger("ktls.rpcQueue", 1024)),
+                threads("kt-rpc", Thread.NORM_PRIORITY),
+                new ThreadPoolExecutor.CallerRunsPolicy()));
+    }
+
+    static ForkJoinPool analysis() {
+        return register("kt-analysis", new ForkJoinPool(
+                Integer.getInteger("ktls.analysisThreads", Runtime.getRuntime().availableProcessors()),
+                pool -> {
+                    final ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    t.setName("kt-analysis-" + t.getPoolIndex());
+                    t.setDaemon(true);
+                    return t;
+                },
+                null,
+                false));
+    }
+
+    /**
+     * Single thread working off an unbounded queue in order
+     */
+    static ThreadPoolExecutor single(String name, int priority) {
+        return register(name, new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), threads(name, priority)));
+    }
+
+    static ScheduledThreadPoolExecutor scheduled(String name) {
+        return register(name, new ScheduledThreadPoolExecutor(1, threads(name, Thread.NORM_PRIORITY)));
+    }
+
+    private static <T extends ExecutorService> T register(String name, T pool) {
+        pools.put(name, pool);
+        return pool;
+    }
+
+    private static ThreadFactory threads(String name, int priority) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            final Thread t = new Thread(r, name + "-" + count.getAndIncrement());
+            t.setDaemon(true);
+            t.setPriority(priority);
+            return t;
+        };
+    }
+
+    /**
+     * @return threads, active threads, queued and completed tasks of every
+     *         pool, by pool name
+     */
+    static Map<String, Map<String, Long>> metrics() {
+        final Map<String, Map<String, Long>> metrics = new LinkedHashMap<>();
+        pools.forEach((name, pool) -> {
+            final Map<String, Long> m = new LinkedHashMap<>();
+            if (pool instanceof ThreadPoolExecutor) {
+                final ThreadPoolExecutor tpe = (ThreadPoolExecutor) pool;
+                m.put("threads", (long) tpe.getPoolSize());
+                m.put("active", (long) tpe.getActiveCount());
+                m.put("queued", (long) tpe.getQueue().size());
+                m.put("completed", tpe.getCompletedTaskCount());
+            } else if (pool instanceof ForkJoinPool) {
+                final ForkJoinPool fjp = (ForkJoinPool) pool;
+                m.put("threads", (long) fjp.getPoolSize());
+                m.put("active", (long) fjp.getActiveThreadCount());
+                m.put("queued", fjp.getQueuedTaskCount() + fjp.getQueuedSubmissionCount());
+                m.put("steals", fjp.getStealCount());
+            }
+            metrics.put(name, m);
+        });
+        return metrics;
+    }
+}
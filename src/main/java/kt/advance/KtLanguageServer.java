@@ -1,39 +1,54 @@
 package kt.advance;
 
 import java.io.File;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
-import java.util.logging.LogRecord;
 import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
 import java.util.stream.Collectors;
 
 import javax.xml.bind.JAXBException;
 
+import org.eclipse.lsp4j.CodeLensOptions;
 import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.ExecuteCommandOptions;
 import org.eclipse.lsp4j.InitializeParams;
 import org.eclipse.lsp4j.InitializeResult;
 import org.eclipse.lsp4j.InitializedParams;
-import org.eclipse.lsp4j.MessageParams;
-import org.eclipse.lsp4j.MessageType;
-import org.eclipse.lsp4j.PublishDiagnosticsParams;
 import org.eclipse.lsp4j.ServerCapabilities;
 import org.eclipse.lsp4j.TextDocumentSyncKind;
+import org.eclipse.lsp4j.WorkspaceFoldersOptions;
+import org.eclipse.lsp4j.WorkspaceServerCapabilities;
 import org.eclipse.lsp4j.services.LanguageClient;
 import org.eclipse.lsp4j.services.LanguageServer;
 import org.eclipse.lsp4j.services.TextDocumentService;
@@ -42,10 +57,12 @@ import org.eclipse.lsp4j.services.WorkspaceService;
 import com.kt.advance.api.CAnalysisImpl;
 import com.kt.advance.api.CApplication;
 import com.kt.advance.api.CFile;
+import com.kt.advance.api.CFunction;
 import com.kt.advance.api.FsAbstraction;
 import com.kt.advance.xml.model.FsAbstractionImpl;
 
-import kt.advance.KtTextDocumentService.DiagnosticComparator;
+import com.google.common.collect.ImmutableList;
+
 
 class KtLanguageServer implements LanguageServer {
     private static final Logger LOG = Logger.getLogger("main");
@@ -53,29 +70,105 @@ class KtLanguageServer implements LanguageServer {
     private final CompletableFuture<LanguageClient> client = new CompletableFuture<>();
     private final KtTextDocumentService textDocuments = new KtTextDocumentService(client, this);
     private final KtWorkspaceService workspace = new KtWorkspaceService(client, this, textDocuments);
-    private File workspaceRoot;
-    private Map<File, List<Diagnostic>> poByFileMap;
-    private CAnalysisImpl cAnalysis;
+    private volatile File workspaceRoot;
+    /**
+     * stores of the applications containing POs of a source file
+     */
+    private final Map<File, List<POStore>> poByFileMap = new ConcurrentHashMap<>();
+    /**
+     * functions of a source file of all its applications, built on the first
+     * lookup and dropped whenever the file's entry of poByFileMap changes
+     */
+    private final Map<File, List<FunctionSummary>> functionsByFile = new ConcurrentHashMap<>();
+    private final Map<File, DiagnosticsSnapshot.AppEntry> appEntries = new ConcurrentHashMap<>();
+    /**
+     * functions of the loaded applications by name
+     */
+    private final SymbolIndex symbols = new SymbolIndex();
+    private final AnalysisWatcher watcher = new AnalysisWatcher(this::reloadApps);
+
+    /**
+     * Read all applications at startup instead of on demand
+     */
+    private final boolean eagerLoading = Boolean.getBoolean("ktls.eagerLoading");
+    private final Set<File> scannedApps = ConcurrentHashMap.newKeySet();
+    private final Map<File, CompletableFuture<Void>> appLoads = new ConcurrentHashMap<>();
+    /**
+     * Converts POs; kept apart from the common pool used by lsp4j
+     */
+    private final ForkJoinPool analysisPool = KtExecutors.analysis();
+    private final ExecutorService prefetcher = KtExecutors.single("kt-prefetch", Thread.MIN_PRIORITY);
+    private final ExecutorService initializer = KtExecutors.single("kt-init", Thread.NORM_PRIORITY);
+    /**
+     * applications that passed each loading stage
+     */
+    private final Map<String, AtomicInteger> progress = new ConcurrentHashMap<>();
+    private volatile int appCount;
+    /**
+     * snapshot of the current load, dropped once every application was served
+     */
+    private volatile DiagnosticsSnapshot snapshot = DiagnosticsSnapshot.empty();
+    private final AtomicBoolean snapshotStale = new AtomicBoolean(false);
+
+    /**
+     * One run of loading the analysis of the workspace root. Loading checks it
+     * between applications and between functions, and stops once it is
+     * cancelled.
+     */
+    private static final class LoadSession {
+        private volatile boolean cancelled;
+
+        void cancel() {
+            cancelled = true;
+        }
 
-    void clearFileDiagnostics(Path file) {
-        client.thenAccept(
-            c -> c.publishDiagnostics(
-                new PublishDiagnosticsParams(
-                        file.toUri().toString(), new ArrayList<>())));
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        void check() {
+            if (cancelled) {
+                throw new CancellationException("loading cancelled");
+            }
+        }
     }
 
-    private void readXmls(Collection<CApplication> apps) {
-        final Instant start = Instant.now();
-        poByFileMap = new ConcurrentHashMap<>();
+    private volatile LoadSession session = new LoadSession();
+    private volatile boolean shutdownRequested;
 
-        apps.parallelStream()
-                .forEach(app -> {
-                    LOG.log(Level.INFO, "reading " + app.getBaseDir() + "\t in \t" + Thread.currentThread().getName());
-                    app.read();
-                    app.getCfiles().forEach(
-                        f -> mapFilePpos(f, poByFileMap));
+    /**
+     * handlers added to the root logger, removed on shutdown
+     */
+    private final List<Handler> logHandlers = new CopyOnWriteArrayList<>();
 
-                });
+    void clearFileDiagnostics(Path file) {
+        textDocuments.clearDiagnostics(file.toFile());
+    }
+
+    /**
+     * @return source files with POs, of the applications loaded so far
+     */
+    Set<File> sourceFiles() {
+        return Collections.unmodifiableSet(poByFileMap.keySet());
+    }
+
+    private void readXmls(Collection<File> apps) {
+        final Instant start = Instant.now();
+        final LoadSession session = this.session;
+        snapshot = DiagnosticsSnapshot.load(DiagnosticsSnapshot.snapshotFile(workspaceRoot));
+
+        // every application is published as soon as it is ready; one opened
+        // meanwhile is loaded only once, by whoever registers the load first
+        analysisPool.submit(() -> apps.parallelStream()
+                .forEach(appDir -> {
+                    session.check();
+                    scannedApps.add(appDir);
+                    // failures are logged, the other applications go on
+                    loadAsync(appDir, Runnable::run, session)
+                            .handle((result, e) -> null)
+                            .join();
+                }))
+                .join();
         final Instant end = Instant.now();
 
         /*
@@ -84,33 +177,419 @@ class KtLanguageServer implements LanguageServer {
          */
         LOG.info("Time elapsed for reading  is " + Duration.between(start, end));
 
+        if (!session.isCancelled()) {
+            snapshot = DiagnosticsSnapshot.empty();
+            saveSnapshot();
+        }
     }
 
-    private void mapFilePpos(CFile file, Map<File, List<Diagnostic>> poByFileMap) {
+    /**
+     * Only records which applications exist; an application is read when one
+     * of its source files is opened, the rest are prefetched one by one on a
+     * low-priority thread.
+     */
+    private void scanXmls(Collection<File> apps) {
+        snapshot = DiagnosticsSnapshot.load(DiagnosticsSnapshot.snapshotFile(workspaceRoot));
+
+        scannedApps.addAll(apps);
+        LOG.info("found " + scannedApps.size() + " applications, loading them lazily");
+
+        final LoadSession session = this.session;
+
+        // documents opened before the applications were known, e.g. restored
+        // editors, do not wait for the prefetch
+        textDocuments.openFiles()
+                .stream()
+                .map(DocumentRegistry::file)
+                .filter(Objects::nonNull)
+                .forEach(this::ensureLoaded);
+
+        apps.forEach(appDir -> prefetcher.execute(() -> {
+            if (!session.isCancelled()) {
+                loadAsync(appDir, Runnable::run, session).join();
+            }
+        }));
+        prefetcher.execute(() -> {
+            // after a reload the snapshot is the one of the new session
+            if (!session.isCancelled()) {
+                snapshot = DiagnosticsSnapshot.empty();
+                saveSnapshot();
+            }
+        });
+    }
 
-        final List<Diagnostic> filePOs = poByFileMap.computeIfAbsent(
-            file.getSourceFile(),
-            f -> new ArrayList<Diagnostic>());
+    /**
+     * Makes sure the application containing the given source file is read.
+     */
+    CompletableFuture<Void> ensureLoaded(File sourceFile) {
+        return UNCPathTool.containingDir(scannedApps, sourceFile)
+                .map(appDir -> loadAsync(appDir, analysisPool, session))
+                .orElse(CompletableFuture.completedFuture(null));
+    }
 
-        file.getCFunctions().forEach(function -> {
-            filePOs.addAll(
-                function.getPPOs()
-                        .stream()
-                        .map(POMapper::convert)
-                        .collect(Collectors.toList()));
+    private CompletableFuture<Void> loadAsync(File appDir, Executor executor, LoadSession session) {
+        final CompletableFuture<Void> load = new CompletableFuture<>();
+        final CompletableFuture<Void> existing = appLoads.putIfAbsent(appDir, load);
+        if (existing != null) {
+            return existing;
+        }
 
-            function.getCallsites().forEach(callsite -> filePOs.addAll(
-                callsite.getSpos()
-                        .stream()
-                        .map(POMapper::convert)
-                        .collect(Collectors.toList())));
+        executor.execute(() -> {
+            try {
+                final Set<File> files = loadApp(appDir, session);
+                textDocuments.reportDiagnosticsByFile(files);
+                load.complete(null);
+            } catch (final CancellationException e) {
+                LOG.info("stopped loading " + appDir);
+                load.completeExceptionally(e);
+            } catch (final RuntimeException e) {
+                LOG.log(Level.SEVERE, "cannot load " + appDir, e);
+                // the next document of the application tries again
+                appLoads.remove(appDir, load);
+                load.completeExceptionally(e);
+            }
         });
+        return load;
+    }
+
+    /**
+     * Takes the application's diagnostics from the snapshot, or reads its XMLs
+     * if they changed since the snapshot was taken, and indexes its files.
+     *
+     * @return source files of the application, to be published
+     */
+    private Set<File> loadApp(File appDir, LoadSession session) {
+        session.check();
+        final long fingerprint = DiagnosticsSnapshot.fingerprint(appDir);
+        POStore appPOs = snapshot.get(appDir, fingerprint);
+
+        if (appPOs == null) {
+            LOG.log(Level.INFO, "reading " + appDir + "\t in \t" + Thread.currentThread().getName());
+            try {
+                final CApplication app = readCApp(appDir);
+                session.check();
+                progress("read", appDir);
+                appPOs = app == null ? POStore.EMPTY : convert(app, session);
+                progress("convert", appDir);
+            } catch (final JAXBException e) {
+                LOG.log(Level.SEVERE, "cannot read " + appDir, e);
+                appPOs = POStore.EMPTY;
+            }
+            snapshotStale.set(true);
+        } else {
+            LOG.log(Level.INFO, "using snapshot of " + appDir);
+        }
+
+        // under the lock reload clears the maps with, so a cancelled load
+        // cannot add to them afterwards
+        synchronized (this) {
+            session.check();
+            appEntries.put(appDir, new DiagnosticsSnapshot.AppEntry(fingerprint, appPOs));
+            symbols.put(appDir, appPOs);
+            indexFiles(appPOs.files());
+        }
+        progress("ready", appDir);
+        return appPOs.files();
+    }
+
+    /**
+     * Tells the client how far loading got, as a telemetry event: the stage
+     * (scan, read, convert, ready), the application and how many of all
+     * applications passed the stage.
+     */
+    private void progress(String stage, File app) {
+        progress(stage, app, progress.computeIfAbsent(stage, k -> new AtomicInteger()).incrementAndGet());
+    }
+
+    private void scanned(int apps) {
+        appCount = apps;
+        progress.clear();
+        progress("scan", workspaceRoot, apps);
+    }
+
+    private void progress(String stage, File app, int done) {
+        final Map<String, Object> event = new LinkedHashMap<>();
+        event.put("type", "kt/progress");
+        event.put("stage", stage);
+        event.put("app", app.getPath());
+        event.put("done", done);
+        event.put("total", appCount);
+        client.thenAccept(c -> c.telemetryEvent(event));
+    }
+
+    /**
+     * Recomputes the stores of the given source files from the loaded
+     * applications. Every entry is replaced atomically by a frozen list, so
+     * loads and reloads touching the same file concurrently cannot lose each
+     * other's updates.
+     */
+    private void indexFiles(Collection<File> files) {
+        files.forEach(file -> poByFileMap.compute(file, (f, old) -> {
+            final List<POStore> stores = appEntries.values()
+                    .stream()
+                    .map(entry -> entry.store)
+                    .filter(store -> store.contains(f))
+                    .collect(ImmutableList.toImmutableList());
+            return stores.isEmpty() ? null : stores;
+        }));
+        files.forEach(functionsByFile::remove);
+    }
+
+    private void saveSnapshot() {
+        // not under the server's lock, saving takes a while; one save at a
+        // time, each writes the next generation
+        synchronized (snapshotStale) {
+            if (snapshotStale.getAndSet(false)) {
+                DiagnosticsSnapshot.save(DiagnosticsSnapshot.snapshotFile(workspaceRoot), appEntries);
+            }
+        }
+    }
+
+    /**
+     * Converts the functions of the application in parallel; every worker
+     * fills its own builder and the partial builders are merged once.
+     */
+    private POStore convert(CApplication app, LoadSession session) {
+        return analysisPool.submit(
+            () -> app.getCfiles()
+                    .stream()
+                    .flatMap(file -> file.getCFunctions()
+                            .stream()
+                            .map(function -> new SimpleImmutableEntry<>(sourceFile(file), function)))
+                    .parallel()
+                    .collect(
+                        POStore.Builder::new,
+                        (appPOs, f) -> {
+                            session.check();
+                            mapFunctionPpos(f.getKey(), f.getValue(), appPOs);
+                        },
+                        POStore.Builder::merge))
+                .join()
+                .build();
+    }
+
+    /**
+     * @return source file of the C file, normalized like the open documents
+     */
+    private static File sourceFile(CFile file) {
+        return DocumentRegistry.normalize(file.getSourceFile());
+    }
+
+    /**
+     * Re-reads applications whose analysis XMLs were rewritten and publishes
+     * diagnostics of the source files that changed as a result. The XMLs are
+     * read without holding the lock; a reload of the workspace meanwhile
+     * cancels this like any other load.
+     */
+    void reloadApps(Set<File> appDirs) {
+        final LoadSession session = this.session;
+        final Map<File, DiagnosticsSnapshot.AppEntry> reloaded = new HashMap<>();
+
+        try {
+            for (final File appDir : appDirs) {
+                if (!appEntries.containsKey(appDir)) {
+                    // not loaded yet, will be read fresh when needed
+                    continue;
+                }
+
+                LOG.log(Level.INFO, "re-reading " + appDir);
+                final long fingerprint = DiagnosticsSnapshot.fingerprint(appDir);
+                try {
+                    reloaded.put(appDir, new DiagnosticsSnapshot.AppEntry(fingerprint, readApp(appDir, session)));
+                } catch (final JAXBException e) {
+                    LOG.log(Level.SEVERE, "cannot read " + appDir, e);
+                }
+            }
+        } catch (final CancellationException e) {
+            LOG.info("stopped re-reading " + appDirs);
+            return;
+        }
+
+        final Set<File> touchedFiles = new HashSet<>();
+        synchronized (this) {
+            if (session.isCancelled()) {
+                return;
+            }
+            reloaded.forEach((appDir, entry) -> {
+                final DiagnosticsSnapshot.AppEntry old = appEntries.put(appDir, entry);
+                if (old != null) {
+                    touchedFiles.addAll(old.store.files());
+                }
+                touchedFiles.addAll(entry.store.files());
+                symbols.put(appDir, entry.store);
+            });
+            indexFiles(touchedFiles);
+        }
+
+        // the publisher skips files whose diagnostics did not change, and
+        // builds diagnostics only for the files it publishes
+        final Set<File> remaining = new HashSet<>();
+        for (final File file : touchedFiles) {
+            if (poByFileMap.containsKey(file)) {
+                remaining.add(file);
+            } else {
+                clearFileDiagnostics(file.toPath());
+            }
+        }
+
+        textDocuments.analysisChanged(remaining);
+        if (!reloaded.isEmpty()) {
+            snapshotStale.set(true);
+        }
+        saveSnapshot();
+    }
+
+    /**
+     * Reads a single application with its own {@link CAnalysisImpl}. Nothing
+     * but the converted diagnostics is kept, so the JAXB object graphs of the
+     * application become garbage as soon as this returns.
+     */
+    private POStore readApp(File appDir, LoadSession session) throws JAXBException {
+        final CApplication app = readCApp(appDir);
+        session.check();
+        return app == null ? POStore.EMPTY : convert(app, session);
+    }
+
+    /**
+     * @return the application with its XMLs read, or null if there is none
+     */
+    private static CApplication readCApp(File appDir) throws JAXBException {
+        final CAnalysisImpl analysis = new CAnalysisImpl(new FsAbstractionImpl(appDir));
+        analysis.scanForCApps();
+
+        final CApplication app = analysis.getAppByBaseDir(appDir);
+        if (app != null) {
+            app.read();
+        }
+        return app;
+    }
+
+    /**
+     * Forwards a changed file reported by the client to the analysis watcher.
+     */
+    void fileChanged(File file) {
+        watcher.touched(file);
+    }
+
+    private void mapFunctionPpos(File sourceFile, CFunction function, POStore.Builder appPOs) {
+        appPOs.function(sourceFile, function.getName());
 
-        Collections.sort(filePOs, DiagnosticComparator.instance);
+        function.getPPOs().forEach(
+            po -> POMapper.convert(po, sourceFile, appPOs));
+
+        function.getCallsites().forEach(callsite -> {
+            // the SPOs are located at the call
+            callsite.getSpos()
+                    .stream()
+                    .findFirst()
+                    .ifPresent(po -> appPOs.callsite(po.getSite().getLocation()));
+            callsite.getSpos().forEach(
+                po -> POMapper.convert(po, sourceFile, appPOs));
+        });
     }
 
+    /**
+     * Builds the diagnostics of a file from the PO stores.
+     *
+     * @return immutable list, in {@link POStore#ROW_ORDER}
+     */
     public Optional<List<Diagnostic>> getPOsByFile(File file) {
-        return Optional.ofNullable(poByFileMap.get(file));
+        return getPOsByFile(file, DiagnosticFilter.ALL);
+    }
+
+    /**
+     * Builds the diagnostics of a file the filter accepts.
+     *
+     * @return immutable list, in {@link POStore#ROW_ORDER}
+     */
+    Optional<List<Diagnostic>> getPOsByFile(File file, DiagnosticFilter filter) {
+        final List<POStore> stores = poByFileMap.get(file);
+        if (stores == null) {
+            return Optional.empty();
+        }
+        if (stores.size() == 1) {
+            return Optional.of(stores.get(0).diagnostics(file, filter));
+        }
+
+        // merged by the rows' fields, only the diagnostics shown get built
+        final List<POStore.Row> rows = new ArrayList<>();
+        stores.forEach(store -> store.rows(file, filter, rows));
+        rows.sort(POStore.ROW_ORDER);
+        final List<Diagnostic> merged = new ArrayList<>(rows.size());
+        rows.forEach(row -> merged.add(row.diagnostic()));
+        return Optional.of(Collections.unmodifiableList(merged));
+    }
+
+    /**
+     * @return messages of the POs of the file on the lines (inclusive) that
+     *         the filter accepts
+     */
+    List<String> getPOMessages(File file, int fromLine, int toLine, DiagnosticFilter filter) {
+        final List<POStore> stores = poByFileMap.get(file);
+        if (stores == null) {
+            return Collections.emptyList();
+        }
+
+        final List<String> messages = new ArrayList<>();
+        stores.forEach(store -> messages.addAll(store.messages(file, fromLine, toLine, filter)));
+        return messages;
+    }
+
+    /**
+     * @return the functions of the file with their PO counts, of all
+     *         applications analyzing it, ordered by line
+     */
+    List<FunctionSummary> getFunctions(File file) {
+        if (!poByFileMap.containsKey(file)) {
+            return Collections.emptyList();
+        }
+
+        // indexFiles replaces the stores first and then removes the entry,
+        // which waits for a computation that may have seen the old stores
+        return functionsByFile.computeIfAbsent(file, f -> {
+            final List<FunctionSummary> functions = new ArrayList<>();
+            poByFileMap.getOrDefault(f, Collections.emptyList())
+                    .forEach(store -> functions.addAll(store.functions(f)));
+            functions.sort(Comparator.comparingInt(function -> function.line));
+            return Collections.unmodifiableList(functions);
+        });
+    }
+
+    /**
+     * @return functions called on the zero-based line of the file
+     */
+    List<FunctionSummary> getCallees(File file, int line) {
+        final List<POStore> stores = poByFileMap.get(file);
+        if (stores == null) {
+            return Collections.emptyList();
+        }
+
+        final List<FunctionSummary> callees = new ArrayList<>();
+        stores.forEach(store -> callees.addAll(store.callees(file, line)));
+        return callees;
+    }
+
+    /**
+     * @return file and zero-based line of the calls to the function of the
+     *         file with the given name
+     */
+    List<SimpleImmutableEntry<File, Integer>> getCallers(File file, String function) {
+        final List<POStore> stores = poByFileMap.get(file);
+        if (stores == null) {
+            return Collections.emptyList();
+        }
+
+        final List<SimpleImmutableEntry<File, Integer>> callers = new ArrayList<>();
+        stores.forEach(store -> callers.addAll(store.callers(file, function)));
+        return callers;
+    }
+
+    /**
+     * @return functions of the loaded applications whose name contains the
+     *         query, best matches first
+     */
+    List<FunctionSummary> findFunctions(String query, int limit, boolean byOpenPOs) {
+        return symbols.search(query, limit, byOpenPOs);
     }
 
     private void runXmlScanner(File workspaceRoot) throws JAXBException {
@@ -118,37 +597,94 @@ class KtLanguageServer implements LanguageServer {
         LOG.log(Level.INFO, "scanning " + workspaceRoot);
 
         final FsAbstraction fs = new FsAbstractionImpl(workspaceRoot);
-        cAnalysis = new CAnalysisImpl(fs);
+        // only used to find the applications, each of them is read separately
+        final CAnalysisImpl cAnalysis = new CAnalysisImpl(fs);
         @SuppressWarnings("unused")
         final Map<File, CApplication> apps = cAnalysis.scanForCApps();
 
         final CApplication appByBaseDir = cAnalysis.getAppByBaseDir(workspaceRoot);
         if (appByBaseDir != null) {
             //scan single dir
-            readXmls(Collections.singleton(appByBaseDir));
+            scanned(1);
+            readXmls(Collections.singleton(appByBaseDir.getBaseDir()));
         } else {
-            //scan all
-            readXmls(cAnalysis.getApps());
+            final List<File> appDirs = cAnalysis.getApps()
+                    .stream()
+                    .map(CApplication::getBaseDir)
+                    .collect(Collectors.toList());
+
+            scanned(appDirs.size());
+            if (eagerLoading) {
+                //scan all
+                readXmls(appDirs);
+            } else {
+                scanXmls(appDirs);
+            }
         }
 
+        watcher.watch(scannedApps);
+
     }
 
     @Override
     public void initialized(InitializedParams params) {
         LOG.info("INITIALIZED");
+        // keep the message loop free while the XMLs are read
+        initializer.execute(() -> scan(workspaceRoot));
+    }
+
+    private void scan(File root) {
         try {
 
-            this.runXmlScanner(workspaceRoot);
+            this.runXmlScanner(root);
 
-        } catch (final JAXBException e) {
-            e.printStackTrace();
+        } catch (final CancellationException e) {
+            LOG.info("stopped loading " + root);
+        } catch (final JAXBException | RuntimeException e) {
             LOG.log(Level.SEVERE, "error", e);
         }
+    }
+
+    /**
+     * Stops loading in progress and loads the analysis of the root again, from
+     * scratch.
+     */
+    void reload(File root) {
+        LOG.info("reloading " + root);
+        session.cancel();
+
+        initializer.execute(() -> {
+            session = new LoadSession();
+            workspaceRoot = root;
+
+            final Set<File> oldFiles;
+            synchronized (this) {
+                oldFiles = new HashSet<>(poByFileMap.keySet());
+                scannedApps.clear();
+                appLoads.clear();
+                appEntries.clear();
+                poByFileMap.clear();
+                functionsByFile.clear();
+                symbols.clear();
+            }
+            oldFiles.forEach(file -> clearFileDiagnostics(file.toPath()));
 
-        final Set<File> set = Collections.unmodifiableSet(poByFileMap.keySet());
+            scan(root);
+        });
+    }
 
-        textDocuments.reportDiagnosticsByFile(set);
+    /**
+     * Reloads with the first workspace folder added, since the server handles
+     * a single root.
+     */
+    void workspaceFoldersChanged(List<File> added) {
+        if (!added.isEmpty() && !added.get(0).equals(workspaceRoot)) {
+            reload(added.get(0));
+        }
+    }
 
+    File getWorkspaceRoot() {
+        return workspaceRoot;
     }
 
     @Override
@@ -162,19 +698,26 @@ class KtLanguageServer implements LanguageServer {
             final ServerCapabilities c = new ServerCapabilities();
 
             c.setTextDocumentSync(TextDocumentSyncKind.Incremental);
-            //            final WorkspaceServerCapabilities workspaceCapabilities = new WorkspaceServerCapabilities();
-            //            final WorkspaceFoldersOptions workspaceFoldersCapabilities = new WorkspaceFoldersOptions();
-            //            workspaceFoldersCapabilities.setSupported(true);
-            //            workspaceFoldersCapabilities.setChangeNotifications(true);
-            //            workspaceCapabilities.setWorkspaceFolders(workspaceFoldersCapabilities);
-            //            c.setWorkspace(workspaceCapabilities);
-
-            //        c.setDefinitionProvider(true);
+            c.setExecuteCommandProvider(
+                new ExecuteCommandOptions(ImmutableList.of(
+                    KtWorkspaceService.SHOW_MORE_DIAGNOSTICS,
+                    KtWorkspaceService.SHOW_FUNCTION_DIAGNOSTICS,
+                    KtWorkspaceService.METRICS,
+                    KtWorkspaceService.RELOAD)));
+            final WorkspaceServerCapabilities workspaceCapabilities = new WorkspaceServerCapabilities();
+            final WorkspaceFoldersOptions workspaceFoldersCapabilities = new WorkspaceFoldersOptions();
+            workspaceFoldersCapabilities.setSupported(true);
+            workspaceFoldersCapabilities.setChangeNotifications(true);
+            workspaceCapabilities.setWorkspaceFolders(workspaceFoldersCapabilities);
+            c.setWorkspace(workspaceCapabilities);
+
+            c.setDefinitionProvider(true);
             //        c.setCompletionProvider(new CompletionOptions(true, ImmutableList.of(".")));
-            //        c.setHoverProvider(true);
-            //        c.setWorkspaceSymbolProvider(true);
-            //        c.setReferencesProvider(true);
-            //        c.setDocumentSymbolProvider(true);
+            c.setHoverProvider(true);
+            c.setCodeLensProvider(new CodeLensOptions(true));
+            c.setWorkspaceSymbolProvider(true);
+            c.setReferencesProvider(true);
+            c.setDocumentSymbolProvider(true);
             //        c.setCodeActionProvider(true);
             //        c.setExecuteCommandProvider(
             //            new ExecuteCommandOptions(ImmutableList.of("Java.importClass")));
@@ -193,11 +736,31 @@ class KtLanguageServer implements LanguageServer {
 
     @Override
     public CompletableFuture<Object> shutdown() {
+        LOG.info("shutting down");
+        shutdownRequested = true;
+
+        session.cancel();
+        watcher.close();
+        textDocuments.close();
+        initializer.shutdownNow();
+        prefetcher.shutdownNow();
+        analysisPool.shutdownNow();
+        saveSnapshot();
+
+        LOG.info("closing the log");
+        for (final Handler handler : logHandlers) {
+            Logger.getLogger("").removeHandler(handler);
+            handler.close();
+        }
+        logHandlers.clear();
+
         return CompletableFuture.completedFuture(null);
     }
 
     @Override
     public void exit() {
+        LOG.info("exit");
+        System.exit(shutdownRequested ? 0 : 1);
     }
 
     @Override
@@ -213,45 +776,33 @@ class KtLanguageServer implements LanguageServer {
     void installClient(LanguageClient client) {
         this.client.complete(client);
 
-        final Handler sendToClient = new Handler() {
-            @Override
-            public void publish(LogRecord record) {
-                String message = record.getMessage();
-
-                if (record.getThrown() != null) {
-                    final StringWriter trace = new StringWriter();
-
-                    record.getThrown().printStackTrace(new PrintWriter(trace));
-                    message += "\n" + trace;
-                }
-
-                client.logMessage(
-                    new MessageParams(
-                            messageType(record.getLevel().intValue()), message));
-            }
-
-            private MessageType messageType(int level) {
-                if (level >= Level.SEVERE.intValue()) {
-                    return MessageType.Error;
-                } else if (level >= Level.WARNING.intValue()) {
-                    return MessageType.Warning;
-                } else if (level >= Level.INFO.intValue()) {
-                    return MessageType.Info;
-                } else {
-                    return MessageType.Log;
-                }
-            }
+        addLogHandler(new ClientLogHandler(client));
+        installLogFile();
+    }
 
-            @Override
-            public void flush() {
-            }
+    private void addLogHandler(Handler handler) {
+        logHandlers.add(handler);
+        Logger.getLogger("").addHandler(handler);
+    }
 
-            @Override
-            public void close() throws SecurityException {
-            }
-        };
+    /**
+     * Everything logged also goes to -Dktls.logFile, a {@link FileHandler}
+     * pattern, by default ~/.kt-ls/logs/kt-ls.%g.log: the current log is
+     * kt-ls.0.log, rotated at 10 MB to kt-ls.1.log and kt-ls.2.log
+     */
+    private void installLogFile() {
+        final File logFile = new File(System.getProperty(
+            "ktls.logFile",
+            new File(System.getProperty("user.home"), ".kt-ls/logs/kt-ls.%g.log").getPath()));
 
-        Logger.getLogger("").addHandler(sendToClient);
+        try {
+            Files.createDirectories(logFile.getParentFile().toPath());
+            final FileHandler handler = new FileHandler(logFile.getPath(), 10 << 20, 3, true);
+            handler.setFormatter(new SimpleFormatter());
+            addLogHandler(handler);
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "cannot log to " + logFile, e);
+        }
     }
 
 }
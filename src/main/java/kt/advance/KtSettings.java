@@ -0,0 +1,47 @@
+package kt.advance;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Client settings, as sent with workspace/didChangeConfiguration for the "kt"
+ * section.
+ */
+class KtSettings {
+    public Kt kt = new Kt();
+
+    static class Kt {
+        public PublishPolicy publishDiagnostics = PublishPolicy.fromProperty();
+        /**
+         * 0 for no limit
+         */
+        public Integer maxDiagnosticsPerFile = defaultMaxDiagnosticsPerFile();
+        public Filter filter = new Filter();
+    }
+
+    /**
+     * Empty lists accept everything
+     */
+    static class Filter {
+        /**
+         * violation, open, dead, discharged
+         */
+        public List<String> statuses = Collections.emptyList();
+        public List<String> predicates = Collections.emptyList();
+        /**
+         * primary, secondary
+         */
+        public List<String> levels = Collections.emptyList();
+
+        DiagnosticFilter toFilter() {
+            return DiagnosticFilter.of(statuses, predicates, levels);
+        }
+    }
+
+    /**
+     * @return limit set with -Dktls.maxDiagnosticsPerFile, 1000 by default
+     */
+    static int defaultMaxDiagnosticsPerFile() {
+        return Integer.getInteger("ktls.maxDiagnosticsPerFile", 1000);
+    }
+}
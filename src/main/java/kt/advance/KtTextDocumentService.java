@@ -1,21 +1,22 @@
 package kt.advance;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import org.eclipse.lsp4j.CodeActionParams;
 import org.eclipse.lsp4j.CodeLens;
@@ -35,12 +36,14 @@ import org.eclipse.lsp4j.DocumentRangeFormattingParams;
 import org.eclipse.lsp4j.DocumentSymbolParams;
 import org.eclipse.lsp4j.Hover;
 import org.eclipse.lsp4j.Location;
-import org.eclipse.lsp4j.PublishDiagnosticsParams;
+import org.eclipse.lsp4j.MarkedString;
+import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.Range;
 import org.eclipse.lsp4j.ReferenceParams;
 import org.eclipse.lsp4j.RenameParams;
 import org.eclipse.lsp4j.SignatureHelp;
 import org.eclipse.lsp4j.SymbolInformation;
+import org.eclipse.lsp4j.SymbolKind;
 import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
 import org.eclipse.lsp4j.TextDocumentIdentifier;
 import org.eclipse.lsp4j.TextDocumentItem;
@@ -52,80 +55,303 @@ import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.eclipse.lsp4j.services.LanguageClient;
 import org.eclipse.lsp4j.services.TextDocumentService;
 
-import com.google.common.collect.Sets;
+import com.google.gson.JsonObject;
 
 class KtTextDocumentService implements TextDocumentService {
     private final CompletableFuture<LanguageClient> client;
     private final KtLanguageServer server;
-
-    @Deprecated
-    private final Map<URI, VersionedContent> activeDocuments = new HashMap<>();
+    private final DocumentRegistry documents = new DocumentRegistry();
+    private final DiagnosticsPublisher publisher;
+    private volatile PublishPolicy publishPolicy = PublishPolicy.fromProperty();
+    /**
+     * diagnostics published per file and page, 0 for no limit
+     */
+    private volatile int maxDiagnostics = KtSettings.defaultMaxDiagnosticsPerFile();
+    /**
+     * extra pages of diagnostics requested per file
+     */
+    private final Map<File, Integer> morePages = new ConcurrentHashMap<>();
+    /**
+     * first and last analyzed line of the function per file whose diagnostics
+     * are kept first when the file has too many
+     */
+    private final Map<File, int[]> focus = new ConcurrentHashMap<>();
+    private volatile DiagnosticFilter filter = DiagnosticFilter.ALL;
 
     KtTextDocumentService(CompletableFuture<LanguageClient> client, KtLanguageServer server) {
         this.client = client;
         this.server = server;
+        this.publisher = new DiagnosticsPublisher(client, this::diagnostics, documents::isOpen);
     }
 
     /**
      * All open files, not including things like old git-versions in a diff view
      */
     Set<URI> openFiles() {
-        return Sets.filter(activeDocuments.keySet(), uri -> uri.getScheme().equals("file"));
+        return documents.fileUris();
     }
 
-    public static class DiagnosticComparator implements Comparator<Diagnostic> {
-        public final static DiagnosticComparator instance = new DiagnosticComparator();
+    private static int statusRank(Diagnostic diagnostic) {
+        switch (diagnostic.getSeverity()) {
+        case Error: // violation
+            return 0;
+        case Hint: // open
+            return 1;
+        case Warning: // dead
+            return 2;
+        default: // discharged
+            return 3;
+        }
+    }
 
-        @Override
-        public int compare(Diagnostic a, Diagnostic b) {
+    /**
+     * Which diagnostics to keep when a file has too many: violations, open,
+     * dead, then discharged POs; the sort is stable, so otherwise they stay
+     * in {@link POStore#ROW_ORDER}.
+     */
+    static final Comparator<Diagnostic> TRUNCATION_ORDER = Comparator
+            .comparingInt(KtTextDocumentService::statusRank);
 
-            int diff = a.getSeverity().getValue() - b.getSeverity().getValue();
-            if (diff == 0) {
-                diff = a.getCode().compareTo(b.getCode());
-            }
-            if (diff == 0) {
-                diff = a.getMessage().compareTo(b.getMessage());
-            }
-            return diff;
+    /**
+     * @return diagnostics to publish for the file: with their lines shifted by
+     *         the unsaved edits of the document, and cut to the page limit
+     */
+    private Optional<List<Diagnostic>> diagnostics(File file) {
+        final Optional<List<Diagnostic>> list = server.getPOsByFile(file, filter);
+        final LineMap lines = documents.get(file)
+                .map(content -> content.lines)
+                .orElse(LineMap.IDENTITY);
+
+        if (!lines.isIdentity()) {
+            // the diagnostics are built for every call, they can be modified
+            list.ifPresent(diagnostics -> diagnostics.forEach(
+                diagnostic -> diagnostic.setRange(
+                    POMapper.lineRange(lines.map(diagnostic.getRange().getStart().getLine())))));
+        }
+
+        return list.map(all -> truncate(file, all, lines));
+    }
+
+    private int limit(File file) {
+        return maxDiagnostics * (1 + morePages.getOrDefault(file, 0));
+    }
+
+    private List<Diagnostic> truncate(File file, List<Diagnostic> all, LineMap lines) {
+        final int limit = limit(file);
+        if (limit <= 0 || all.size() <= limit) {
+            return all;
+        }
+
+        final List<Diagnostic> shown = new ArrayList<>(limit + 1);
+        shown.addAll(prioritized(file, all, lines).subList(0, limit));
+        shown.add(POMapper.omitted(all.size() - limit, Math.min(maxDiagnostics, all.size() - limit)));
+        return shown;
+    }
+
+    /**
+     * @param lines
+     *            how the lines of the diagnostics were shifted
+     * @return diagnostics of the focused function first, then in
+     *         {@link #TRUNCATION_ORDER}
+     */
+    private List<Diagnostic> prioritized(File file, List<Diagnostic> all, LineMap lines) {
+        final List<Diagnostic> sorted = new ArrayList<>(all);
+        final int[] function = focus.get(file);
+        if (function == null) {
+            sorted.sort(TRUNCATION_ORDER);
+        } else {
+            final int from = lines.map(function[0]);
+            final int to = lines.map(function[1]);
+            sorted.sort(Comparator.comparing((Diagnostic diagnostic) -> {
+                final int line = diagnostic.getRange().getStart().getLine();
+                return line < from || line > to;
+            }).thenComparing(TRUNCATION_ORDER));
+        }
+        return sorted;
+    }
+
+    /**
+     * Publishes one more page of the file's diagnostics.
+     *
+     * @return diagnostics of the new page, with unshifted lines
+     */
+    List<Diagnostic> showMoreDiagnostics(File file) {
+        final List<Diagnostic> all = server.getPOsByFile(file, filter).orElse(Collections.emptyList());
+        final int from = limit(file);
+        if (maxDiagnostics <= 0 || from >= all.size()) {
+            return Collections.emptyList();
+        }
+
+        morePages.merge(file, 1, Integer::sum);
+        publisher.publish(file);
+        return prioritized(file, all, LineMap.IDENTITY).subList(from, Math.min(limit(file), all.size()));
+    }
+
+    /**
+     * Publishes the diagnostics of a function of the file ahead of the
+     * others, in case the file has more than shown.
+     *
+     * @param line
+     *            zero-based analyzed line of the function's first PO, tells
+     *            apart functions of the same name
+     * @return diagnostics of the function, with unshifted lines
+     */
+    List<Diagnostic> showFunctionDiagnostics(File file, String name, int line) {
+        final List<FunctionSummary> functions = server.getFunctions(file);
+        final FunctionSummary function = functions.stream()
+                .filter(f -> f.name.equals(name))
+                .min(Comparator.comparingInt(f -> Math.abs(f.line - line)))
+                .orElse(null);
+        if (function == null) {
+            return Collections.emptyList();
+        }
+
+        // the function ends where the next one starts; functions are ordered
+        // by line
+        final int to = functions.stream()
+                .mapToInt(f -> f.line)
+                .filter(start -> start > function.line)
+                .findFirst()
+                .orElse(Integer.MAX_VALUE) - 1;
+        focus.put(file, new int[] { function.line, to });
+        publisher.publish(file);
+
+        return server.getPOsByFile(file, filter)
+                .orElse(Collections.emptyList())
+                .stream()
+                .filter(diagnostic -> diagnostic.getRange().getStart().getLine() >= function.line
+                        && diagnostic.getRange().getStart().getLine() <= to)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Publishes one more page of every open file that has more diagnostics
+     * than shown.
+     */
+    void showMoreDiagnostics() {
+        documents.files().forEach(this::showMoreDiagnostics);
+    }
+
+    /**
+     * Re-publishes with a different filter; no XML is read again.
+     */
+    void setFilter(DiagnosticFilter filter) {
+        if (filter.equals(this.filter)) {
+            return;
         }
+        LOG.info("publishing diagnostics of " + filter);
+        this.filter = filter;
+        morePages.clear();
+        focus.clear();
+        reportDiagnosticsByFile(server.sourceFiles());
+    }
 
+    void setMaxDiagnostics(int max) {
+        if (max == maxDiagnostics) {
+            return;
+        }
+        LOG.info("publishing up to " + max + " diagnostics per file");
+        maxDiagnostics = max;
+        morePages.clear();
+        focus.clear();
+        reportDiagnosticsByFile(server.sourceFiles());
     }
 
+    /**
+     * The analysis of the files was re-read; their diagnostics are published
+     * at the analyzed lines again.
+     */
+    void analysisChanged(Collection<File> files) {
+        documents.resetLines(files);
+        reportDiagnosticsByFile(files);
+    }
+
+    /**
+     * Publishes diagnostics of the files the {@link PublishPolicy} allows.
+     */
     public void reportDiagnosticsByFile(Collection<File> files) {
-        files.forEach(file -> reportDiagnostics(file));
+        publisher.publish(files.stream()
+                .filter(this::shouldPublish)
+                .collect(Collectors.toList()));
     }
 
     private void reportDiagnostics(File file) {
-        server.getPOsByFile(file)
-                .ifPresent(list -> {
-
-                    Collections.sort(list, DiagnosticComparator.instance);
+        if (shouldPublish(file)) {
+            publisher.publish(file);
+        }
+    }
 
-                    final PublishDiagnosticsParams eee = new PublishDiagnosticsParams(file.toURI().toString(), list);
+    /**
+     * Drops a queued publish of the file and clears its diagnostics in the
+     * client.
+     */
+    void clearDiagnostics(File file) {
+        publisher.clear(file);
+    }
 
-                    if (list.size() > 2000) {
-                        try {
-                            Thread.sleep(200);
-                        } catch (final Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
+    private boolean shouldPublish(File file) {
+        switch (publishPolicy) {
+        case workspace:
+            return true;
+        case neighbors:
+            return documents.isOpen(file) || documents.files()
+                    .stream()
+                    .anyMatch(open -> Objects.equals(open.getParentFile(), file.getParentFile()));
+        case open:
+        default:
+            return documents.isOpen(file);
+        }
+    }
 
-                    client.join().publishDiagnostics(eee);
-                    LOG.info("Published "
-                            + eee.getDiagnostics().size()
-                            + " errors from "
-                            + file);
+    /**
+     * Switches the policy; files it no longer covers are cleared in the
+     * client, files it newly covers are published.
+     */
+    void setPublishPolicy(PublishPolicy policy) {
+        if (policy == publishPolicy) {
+            return;
+        }
+        LOG.info("publishing diagnostics of " + policy + " files");
+        publishPolicy = policy;
+
+        publisher.published()
+                .stream()
+                .filter(file -> !shouldPublish(file))
+                .collect(Collectors.toList())
+                .forEach(publisher::clear);
+        reportDiagnosticsByFile(server.sourceFiles());
+    }
 
-                });
+    /**
+     * Publishes the file and, depending on the policy, its neighbors
+     */
+    private void reportOpened(File file) {
+        if (publishPolicy == PublishPolicy.neighbors) {
+            reportDiagnosticsByFile(server.sourceFiles()
+                    .stream()
+                    .filter(other -> Objects.equals(other.getParentFile(), file.getParentFile()))
+                    .collect(Collectors.toList()));
+        }
+        // open files are always published
+        publisher.publish(file);
     }
 
     public void reportDiagnostics(Collection<URI> paths) {
         //        LOG.info("Lint " + Joiner.on(", ").join(paths));
-        paths.forEach(uri -> reportDiagnostics(UNCPathTool.uri2file(uri)));
+        paths.stream()
+                .map(DocumentRegistry::file)
+                .filter(Objects::nonNull)
+                .forEach(this::reportDiagnostics);
 
     }
 
+    /**
+     * Stops publishing
+     */
+    void close() {
+        publisher.close();
+    }
+
     @Override
     public CompletableFuture<Either<List<CompletionItem>, CompletionList>> completion(
             TextDocumentPositionParams position) {
@@ -137,9 +363,47 @@ class KtTextDocumentService implements TextDocumentService {
         return null;
     }
 
+    /**
+     * @return how the analyzed lines of the file moved with unsaved edits
+     */
+    private LineMap lines(File file) {
+        return documents.get(file)
+                .map(content -> content.lines)
+                .orElse(LineMap.IDENTITY);
+    }
+
+    /**
+     * @return symbol of the function at its current line
+     */
+    SymbolInformation symbol(FunctionSummary function) {
+        final Location location = new Location(
+                function.file.toURI().toString(),
+                POMapper.lineRange(lines(function.file).map(function.line)));
+        return new SymbolInformation(function.name, SymbolKind.Function, location, function.file.getName());
+    }
+
     @Override
     public CompletableFuture<Hover> hover(TextDocumentPositionParams position) {
-        return null;
+        final File file = DocumentRegistry.file(URI.create(position.getTextDocument().getUri()));
+        if (file == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final int line = position.getPosition().getLine();
+        final int[] analyzed = lines(file).unmap(line);
+        if (analyzed == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final List<String> messages = server.getPOMessages(file, analyzed[0], analyzed[1], filter);
+        if (messages.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final List<Either<String, MarkedString>> contents = messages.stream()
+                .map(message -> Either.<String, MarkedString> forRight(new MarkedString("text", message)))
+                .collect(Collectors.toList());
+        return CompletableFuture.completedFuture(new Hover(contents, POMapper.lineRange(line)));
     }
 
     @Override
@@ -150,14 +414,121 @@ class KtTextDocumentService implements TextDocumentService {
     @Override
     public CompletableFuture<List<? extends Location>> definition(
             TextDocumentPositionParams position) {
-        return null;
+        final File file = DocumentRegistry.file(URI.create(position.getTextDocument().getUri()));
+        if (file == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final int[] analyzed = lines(file).unmap(position.getPosition().getLine());
+        if (analyzed == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final List<FunctionSummary> callees = callees(file, analyzed);
+
+        // of several calls on the line, the one under the cursor
+        final String name = identifier(file, position.getPosition());
+        final boolean named = callees.stream().anyMatch(function -> function.name.equals(name));
+
+        final List<Location> locations = callees.stream()
+                .filter(function -> !named || function.name.equals(name))
+                .map(function -> symbol(function).getLocation())
+                .collect(Collectors.toList());
+        return CompletableFuture.completedFuture(locations);
+    }
+
+    private List<FunctionSummary> callees(File file, int[] analyzed) {
+        final List<FunctionSummary> callees = new ArrayList<>();
+        for (int line = analyzed[0]; line <= analyzed[1]; line++) {
+            callees.addAll(server.getCallees(file, line));
+        }
+        return callees;
     }
 
+    /**
+     * Finds the calls to the function named under the cursor, or to the
+     * function the cursor is in if there is no name under it; the SPOs of a
+     * call are on its line.
+     */
     @Override
     public CompletableFuture<List<? extends Location>> references(ReferenceParams params) {
+        final File file = DocumentRegistry.file(URI.create(params.getTextDocument().getUri()));
+        if (file == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final int[] analyzed = lines(file).unmap(params.getPosition().getLine());
+        final List<FunctionSummary> functions = server.getFunctions(file);
+
+        final String name = identifier(file, params.getPosition());
+        FunctionSummary function = null;
+        if (name != null) {
+            function = resolve(file, analyzed, name, functions);
+        } else if (analyzed != null) {
+            // functions are ordered by line
+            for (final FunctionSummary f : functions) {
+                if (f.line <= analyzed[0]) {
+                    function = f;
+                }
+            }
+        }
+        if (function == null) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+
+        final List<Location> locations = new ArrayList<>();
+        if (params.getContext() != null && params.getContext().isIncludeDeclaration()) {
+            locations.add(symbol(function).getLocation());
+        }
+        server.getCallers(function.file, function.name).forEach(call -> locations.add(new Location(
+                call.getKey().toURI().toString(),
+                POMapper.lineRange(lines(call.getKey()).map(call.getValue())))));
+        return CompletableFuture.completedFuture(locations);
+    }
+
+    /**
+     * @return the function with the name: of this file, else called on the
+     *         line, else of any loaded application; null if there is none
+     */
+    private FunctionSummary resolve(File file, int[] analyzed, String name, List<FunctionSummary> functions) {
+        for (final FunctionSummary function : functions) {
+            if (function.name.equals(name)) {
+                return function;
+            }
+        }
+        if (analyzed != null) {
+            for (final FunctionSummary callee : callees(file, analyzed)) {
+                if (callee.name.equals(name)) {
+                    return callee;
+                }
+            }
+        }
+        // whole names come first, ignoring case
+        for (final FunctionSummary function : server.findFunctions(name, RESOLVE_LIMIT, false)) {
+            if (function.name.equals(name)) {
+                return function;
+            }
+        }
         return null;
     }
 
+    /**
+     * @return the C identifier at the position of an open document, or null
+     */
+    private String identifier(File file, Position position) {
+        return documents.get(file).map(content -> {
+            final String text = content.content.line(position.getLine());
+
+            int start = Math.min(Math.max(position.getCharacter(), 0), text.length());
+            while (start > 0 && Character.isJavaIdentifierPart(text.charAt(start - 1))) {
+                start--;
+            }
+            int end = start;
+            while (end < text.length() && Character.isJavaIdentifierPart(text.charAt(end))) {
+                end++;
+            }
+            return start == end ? null : text.substring(start, end);
+        }).orElse(null);
+    }
+
     @Override
     public CompletableFuture<List<? extends DocumentHighlight>> documentHighlight(
             TextDocumentPositionParams position) {
@@ -167,7 +538,19 @@ class KtTextDocumentService implements TextDocumentService {
     @Override
     public CompletableFuture<List<? extends SymbolInformation>> documentSymbol(
             DocumentSymbolParams params) {
-        return null;
+        final File file = DocumentRegistry.file(URI.create(params.getTextDocument().getUri()));
+        if (file == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final List<SymbolInformation> symbols = new ArrayList<>();
+        for (final FunctionSummary function : server.getFunctions(file)) {
+            final SymbolInformation symbol = symbol(function);
+            // the outline shows the container next to the name
+            symbol.setContainerName(function.describe());
+            symbols.add(symbol);
+        }
+        return CompletableFuture.completedFuture(symbols);
     }
 
     @Override
@@ -177,12 +560,56 @@ class KtTextDocumentService implements TextDocumentService {
 
     @Override
     public CompletableFuture<List<? extends CodeLens>> codeLens(CodeLensParams params) {
-        return null;
+        final URI uri = URI.create(params.getTextDocument().getUri());
+        final File file = DocumentRegistry.file(uri);
+        if (file == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final LineMap lines = lines(file);
+
+        // only the position now, the counts are told in resolveCodeLens
+        final List<CodeLens> lenses = new ArrayList<>();
+        for (final FunctionSummary function : server.getFunctions(file)) {
+            final JsonObject data = new JsonObject();
+            data.addProperty("uri", uri.toString());
+            data.addProperty("function", function.name);
+            data.addProperty("line", function.line);
+
+            lenses.add(new CodeLens(POMapper.lineRange(lines.map(function.line)), null, data));
+        }
+        return CompletableFuture.completedFuture(lenses);
     }
 
     @Override
     public CompletableFuture<CodeLens> resolveCodeLens(CodeLens unresolved) {
-        return null;
+        if (!(unresolved.getData() instanceof JsonObject)) {
+            LOG.warning("cannot resolve code lens with data " + unresolved.getData());
+            return CompletableFuture.completedFuture(unresolved);
+        }
+        final JsonObject data = (JsonObject) unresolved.getData();
+        if (!data.has("uri") || !data.has("function") || !data.has("line")) {
+            LOG.warning("cannot resolve code lens with data " + data);
+            return CompletableFuture.completedFuture(unresolved);
+        }
+        final File file = DocumentRegistry.file(URI.create(data.get("uri").getAsString()));
+        final String name = data.get("function").getAsString();
+        final int line = data.get("line").getAsInt();
+
+        // the analysis may have been reloaded since the lens was made
+        final String title = file == null
+                ? "no proof obligations"
+                : server.getFunctions(file)
+                        .stream()
+                        .filter(function -> function.name.equals(name))
+                        .min(Comparator.comparingInt(function -> Math.abs(function.line - line)))
+                        .map(FunctionSummary::describe)
+                        .orElse("no proof obligations");
+
+        // clicking the lens makes sure the function's diagnostics are shown
+        unresolved.setCommand(new Command(title, KtWorkspaceService.SHOW_FUNCTION_DIAGNOSTICS,
+                Arrays.asList(data.get("uri").getAsString(), name, line)));
+        return CompletableFuture.completedFuture(unresolved);
     }
 
     @Override
@@ -212,77 +639,61 @@ class KtTextDocumentService implements TextDocumentService {
         final TextDocumentItem document = params.getTextDocument();
         final URI uri = URI.create(document.getUri());
         LOG.log(Level.INFO, "didOpen " + uri);
-        //XXX: we dont need it?
-        activeDocuments.put(uri, new VersionedContent(document.getText(), document.getVersion()));
+        documents.open(uri, new VersionedContent(document.getText(), document.getVersion()));
 
-        //        reportDiagnostics(Collections.singleton(uri));
+        final File file = DocumentRegistry.file(uri);
+        if (file != null) {
+            publisher.opened(file);
+            server.ensureLoaded(file).thenRun(() -> reportOpened(file));
+        }
     }
 
     @Override
     public void didChange(DidChangeTextDocumentParams params) {
         final VersionedTextDocumentIdentifier document = params.getTextDocument();
         final URI uri = URI.create(document.getUri());
-        final VersionedContent existing = activeDocuments.get(uri);
-        String newText = existing.content;
 
-        if (document.getVersion() > existing.version) {
+        final LineMap linesBefore = documents.get(uri).map(content -> content.lines).orElse(null);
+
+        final boolean applied = documents.update(uri, document.getVersion(), existing -> {
+            Rope text = existing.content;
+            LineMap lines = existing.lines;
             for (final TextDocumentContentChangeEvent change : params.getContentChanges()) {
                 if (change.getRange() == null) {
-                    activeDocuments.put(
-                        uri, new VersionedContent(change.getText(), document.getVersion()));
+                    // lines cannot be tracked through a full replacement
+                    text = Rope.of(change.getText());
                 } else {
-                    newText = patch(newText, change);
+                    lines = lines.edit(change.getRange(), change.getText());
+                    text = patch(text, change);
                 }
             }
+            return new VersionedContent(text, lines, document.getVersion());
+        });
 
-            activeDocuments.put(uri, new VersionedContent(newText, document.getVersion()));
-        } else {
+        if (!applied) {
             LOG.warning(
-                "Ignored change with version "
+                "Ignored change of "
+                        + uri
+                        + " with version "
                         + document.getVersion()
-                        + " <= "
-                        + existing.version);
+                        + ", not open or not newer");
+        } else {
+            final File file = DocumentRegistry.file(uri);
+            final boolean linesMoved = documents.get(uri)
+                    .map(content -> content.lines != linesBefore)
+                    .orElse(false);
+            if (file != null && linesMoved) {
+                // move the markers along
+                reportDiagnostics(file);
+            }
         }
     }
 
-    private String patch(String sourceText, TextDocumentContentChangeEvent change) {
-        try {
-            final Range range = change.getRange();
-            final BufferedReader reader = new BufferedReader(new StringReader(sourceText));
-            final StringWriter writer = new StringWriter();
-
-            // Skip unchanged lines
-            int line = 0;
-
-            while (line < range.getStart().getLine()) {
-                writer.write(reader.readLine() + '\n');
-                line++;
-            }
-
-            // Skip unchanged chars
-            for (int character = 0; character < range.getStart().getCharacter(); character++) {
-                writer.write(reader.read());
-            }
-
-            // Write replacement text
-            writer.write(change.getText());
-
-            // Skip replaced text
-            reader.skip(change.getRangeLength());
-
-            // Write remaining text
-            while (true) {
-                final int next = reader.read();
-
-                if (next == -1) {
-                    return writer.toString();
-                } else {
-                    writer.write(next);
-                }
-            }
-        } catch (final IOException e) {
-            throw new RuntimeException(e);
-        }
+    private static Rope patch(Rope sourceText, TextDocumentContentChangeEvent change) {
+        final Range range = change.getRange();
+        final int start = sourceText.offset(range.getStart().getLine(), range.getStart().getCharacter());
+        final int end = sourceText.offset(range.getEnd().getLine(), range.getEnd().getCharacter());
+        return sourceText.replace(start, end, change.getText());
     }
 
     @Override
@@ -291,7 +702,20 @@ class KtTextDocumentService implements TextDocumentService {
         final URI uri = URI.create(document.getUri());
 
         // Remove from source cache
-        activeDocuments.remove(uri);
+        documents.close(uri);
+        final File file = DocumentRegistry.file(uri);
+        if (file != null) {
+            morePages.remove(file);
+            focus.remove(file);
+            publisher.closed(file);
+            if (publishPolicy != PublishPolicy.workspace) {
+                publisher.published()
+                        .stream()
+                        .filter(other -> !shouldPublish(other))
+                        .collect(Collectors.toList())
+                        .forEach(publisher::clear);
+            }
+        }
 
     }
 
@@ -301,5 +725,11 @@ class KtTextDocumentService implements TextDocumentService {
         reportDiagnostics(openFiles());
     }
 
+    /**
+     * functions looked at to resolve a name of another file; whole names come
+     * first, so a name defined in more files than this is unlikely
+     */
+    private static final int RESOLVE_LIMIT = 64;
+
     private static final Logger LOG = Logger.getLogger("main");
 }
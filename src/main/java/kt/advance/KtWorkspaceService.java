@@ -1,19 +1,55 @@
 package kt.advance;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import org.eclipse.lsp4j.DidChangeConfigurationParams;
 import org.eclipse.lsp4j.DidChangeWatchedFilesParams;
+import org.eclipse.lsp4j.DidChangeWorkspaceFoldersParams;
 import org.eclipse.lsp4j.ExecuteCommandParams;
 import org.eclipse.lsp4j.SymbolInformation;
 import org.eclipse.lsp4j.WorkspaceSymbolParams;
 import org.eclipse.lsp4j.services.LanguageClient;
 import org.eclipse.lsp4j.services.WorkspaceService;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonPrimitive;
+
 class KtWorkspaceService implements WorkspaceService {
+    /**
+     * publishes the next page of diagnostics of the file given as URI, or of
+     * all open files
+     */
+    static final String SHOW_MORE_DIAGNOSTICS = "kt.showMoreDiagnostics";
+    /**
+     * publishes the diagnostics of a function first; the arguments are the
+     * file URI, the function name and the zero-based line of its first PO
+     */
+    static final String SHOW_FUNCTION_DIAGNOSTICS = "kt.showFunctionDiagnostics";
+    /**
+     * returns the state of the server's thread pools
+     */
+    static final String METRICS = "kt.metrics";
+    /**
+     * stops loading and reads the analysis of the workspace again
+     */
+    static final String RELOAD = "kt.reload";
+
+    /**
+     * functions returned per workspace symbol query
+     */
+    private final int maxSymbols = Integer.getInteger("ktls.maxSymbols", 256);
+    /**
+     * rank functions with more open POs first among equal name matches
+     */
+    private final boolean symbolsByOpenPOs = Boolean.getBoolean("ktls.symbolsByOpenPOs");
+
     private final CompletableFuture<LanguageClient> client;
     private final KtLanguageServer server;
     private final KtTextDocumentService textDocuments;
@@ -38,6 +74,34 @@ class KtWorkspaceService implements WorkspaceService {
             final String packageName = (String) params.getArguments().get(1);
             final String className = (String) params.getArguments().get(2);
 
+            break;
+        case SHOW_MORE_DIAGNOSTICS:
+            if (params.getArguments() == null || params.getArguments().isEmpty()) {
+                textDocuments.showMoreDiagnostics();
+                break;
+            }
+            final File file = DocumentRegistry.file(URI.create(argument(params.getArguments().get(0))));
+            if (file != null) {
+                return CompletableFuture.completedFuture(textDocuments.showMoreDiagnostics(file));
+            }
+            break;
+        case SHOW_FUNCTION_DIAGNOSTICS:
+            if (params.getArguments() == null || params.getArguments().size() < 3) {
+                LOG.warning(SHOW_FUNCTION_DIAGNOSTICS + " needs a file URI, a function name and a line");
+                break;
+            }
+            final File functionFile = DocumentRegistry.file(URI.create(argument(params.getArguments().get(0))));
+            if (functionFile != null) {
+                return CompletableFuture.completedFuture(textDocuments.showFunctionDiagnostics(
+                    functionFile,
+                    argument(params.getArguments().get(1)),
+                    (int) Double.parseDouble(argument(params.getArguments().get(2)))));
+            }
+            break;
+        case METRICS:
+            return CompletableFuture.completedFuture(KtExecutors.metrics());
+        case RELOAD:
+            server.reload(server.getWorkspaceRoot());
             break;
         default:
             LOG.warning("Don't know what to do with " + params.getCommand());
@@ -46,21 +110,59 @@ class KtWorkspaceService implements WorkspaceService {
         return CompletableFuture.completedFuture("Done");
     }
 
+    /**
+     * lsp4j passes arguments as gson elements
+     */
+    private static String argument(Object argument) {
+        return argument instanceof JsonPrimitive ? ((JsonPrimitive) argument).getAsString() : argument.toString();
+    }
+
     @Override
     public CompletableFuture<List<? extends SymbolInformation>> symbol(
             WorkspaceSymbolParams params) {
 
-        return null;
+        final List<SymbolInformation> symbols = server
+                .findFunctions(params.getQuery(), maxSymbols, symbolsByOpenPOs)
+                .stream()
+                .map(textDocuments::symbol)
+                .collect(Collectors.toList());
+        return CompletableFuture.completedFuture(symbols);
     }
 
     @Override
     public void didChangeConfiguration(DidChangeConfigurationParams change) {
         LOG.info("didChangeConfigurations");
-        //        settings = Main.JSON.convertValue(change.getSettings(), JavaSettings.class);
+        try {
+            // lsp4j hands over the settings as gson tree
+            final KtSettings settings = Main.JSON.readValue(new Gson().toJson(change.getSettings()), KtSettings.class);
+            if (settings.kt != null && settings.kt.publishDiagnostics != null) {
+                textDocuments.setPublishPolicy(settings.kt.publishDiagnostics);
+            }
+            if (settings.kt != null && settings.kt.maxDiagnosticsPerFile != null) {
+                textDocuments.setMaxDiagnostics(settings.kt.maxDiagnosticsPerFile);
+            }
+            if (settings.kt != null && settings.kt.filter != null) {
+                textDocuments.setFilter(settings.kt.filter.toFilter());
+            }
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "cannot read settings " + change.getSettings(), e);
+        }
+    }
+
+    @Override
+    public void didChangeWorkspaceFolders(DidChangeWorkspaceFoldersParams params) {
+        server.workspaceFoldersChanged(params.getEvent()
+                .getAdded()
+                .stream()
+                .map(folder -> DocumentRegistry.normalize(UNCPathTool.uri2file(URI.create(folder.getUri()))))
+                .collect(Collectors.toList()));
     }
 
     @Override
     public void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
+        params.getChanges().forEach(
+            event -> server.fileChanged(DocumentRegistry.normalize(UNCPathTool.uri2file(URI.create(event.getUri())))));
+
         textDocuments.reportDiagnostics(textDocuments.openFiles());
     }
 
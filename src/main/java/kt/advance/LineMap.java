@@ -0,0 +1,223 @@
+package kt.advance;
+
+import java.util.Arrays;
+
+import org.eclipse.lsp4j.Range;
+
+/**
+ * Maps the lines of a document as it was analyzed to its lines after unsaved
+ * edits, so that PO markers follow the code they belong to until the analyzer
+ * runs again. Immutable, like the {@link Rope} it goes along with.
+ *
+ * Lines removed by an edit are mapped to the line where the edit starts.
+ *
+ * The analyzed lines are split in segments, each either moved by the same
+ * number of lines or collapsed onto one line, so an edit costs the number of
+ * segments rather than the number of lines.
+ */
+final class LineMap {
+
+    static final LineMap IDENTITY = new LineMap(new int[] { 0 }, new int[] { 0 }, new boolean[1]);
+
+    /**
+     * first analyzed line of every segment, ascending from 0; the last
+     * segment goes on to the end of the document
+     */
+    private final int[] starts;
+    /**
+     * current line of the first analyzed line of every segment
+     */
+    private final int[] targets;
+    /**
+     * whether all lines of the segment are at its target line, rather than
+     * following each other from there
+     */
+    private final boolean[] collapsed;
+
+    private LineMap(int[] starts, int[] targets, boolean[] collapsed) {
+        this.starts = starts;
+        this.targets = targets;
+        this.collapsed = collapsed;
+    }
+
+    boolean isIdentity() {
+        return this == IDENTITY;
+    }
+
+    /**
+     * @return current line of a line of the analyzed document
+     */
+    int map(int line) {
+        if (line < 0) {
+            return line;
+        }
+        int low = 0;
+        int high = starts.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= line) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return collapsed[low] ? targets[low] : targets[low] + line - starts[low];
+    }
+
+    /**
+     * @return first and last analyzed line that are now at the given line, or
+     *         null if the line was added by the edits
+     */
+    int[] unmap(int line) {
+        // lines only ever move together, so the map is sorted
+        final int from = firstAtOrAfter(line);
+        if (map(from) != line) {
+            return null;
+        }
+        return new int[] { from, firstAtOrAfter(line + 1) - 1 };
+    }
+
+    /**
+     * @return first analyzed line that is now at or after the given line
+     */
+    private int firstAtOrAfter(int line) {
+        // first segment reaching the line
+        int low = 0;
+        int high = starts.length - 1;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (last(mid) < line) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (collapsed[low] || line <= targets[low]) {
+            return starts[low];
+        }
+        return starts[low] + line - targets[low];
+    }
+
+    /**
+     * @return current line of the last analyzed line of the segment
+     */
+    private int last(int segment) {
+        if (collapsed[segment]) {
+            return targets[segment];
+        }
+        if (segment == starts.length - 1) {
+            return Integer.MAX_VALUE;
+        }
+        return targets[segment] + starts[segment + 1] - 1 - starts[segment];
+    }
+
+    /**
+     * @param range
+     *            replaced range, in lines of the document before the edit
+     * @param text
+     *            replacement
+     */
+    LineMap edit(Range range, String text) {
+        final int startLine = range.getStart().getLine();
+        final int endLine = range.getEnd().getLine();
+
+        int inserted = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                inserted++;
+            }
+        }
+
+        final int delta = inserted - (endLine - startLine);
+        if (delta == 0 && endLine == startLine) {
+            // typing within a line, nothing moves
+            return this;
+        }
+
+        // lines before collapseFrom stay, lines from moveFrom on move by
+        // delta, the ones in between are removed and go to startLine.
+        // Text inserted at the very beginning of a line pushes the line down,
+        // and a replacement ending at the very beginning of a line keeps it.
+        final int collapseFrom;
+        final int moveFrom;
+        if (range.getStart().getCharacter() == 0 && range.getEnd().equals(range.getStart())) {
+            collapseFrom = startLine;
+            moveFrom = startLine;
+        } else {
+            collapseFrom = startLine + 1;
+            moveFrom = range.getEnd().getCharacter() == 0 && endLine > startLine ? endLine : endLine + 1;
+        }
+
+        final Builder result = new Builder(starts.length + 2);
+        for (int s = 0; s < starts.length; s++) {
+            if (collapsed[s]) {
+                final int target = targets[s];
+                result.add(starts[s], target < collapseFrom ? target
+                        : target < moveFrom ? startLine : target + delta, true);
+                continue;
+            }
+
+            // the segment is cut where its lines reach the boundaries
+            final int start = starts[s];
+            final int end = s + 1 < starts.length ? starts[s + 1] : Integer.MAX_VALUE;
+            final int collapseAt = clamp((long) start + collapseFrom - targets[s], start, end);
+            final int moveAt = clamp((long) start + moveFrom - targets[s], start, end);
+            if (start < collapseAt) {
+                result.add(start, targets[s], false);
+            }
+            if (collapseAt < moveAt) {
+                result.add(collapseAt, startLine, true);
+            }
+            if (moveAt < end) {
+                result.add(moveAt, targets[s] + moveAt - start + delta, false);
+            }
+        }
+        return result.build();
+    }
+
+    private static int clamp(long value, int min, int max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Growing segment arrays, merging a segment into the one before if it
+     * goes on the same way
+     */
+    private static final class Builder {
+        private int size;
+        private int[] starts;
+        private int[] targets;
+        private boolean[] collapsed;
+
+        Builder(int capacity) {
+            starts = new int[capacity];
+            targets = new int[capacity];
+            collapsed = new boolean[capacity];
+        }
+
+        void add(int start, int target, boolean collapse) {
+            if (size > 0 && collapsed[size - 1] == collapse && (collapse
+                    ? targets[size - 1] == target
+                    : targets[size - 1] + start - starts[size - 1] == target)) {
+                return;
+            }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                targets = Arrays.copyOf(targets, size * 2);
+                collapsed = Arrays.copyOf(collapsed, size * 2);
+            }
+            starts[size] = start;
+            targets[size] = target;
+            collapsed[size] = collapse;
+            size++;
+        }
+
+        LineMap build() {
+            if (size == 1 && !collapsed[0] && targets[0] == 0) {
+                return IDENTITY;
+            }
+            return new LineMap(Arrays.copyOf(starts, size), Arrays.copyOf(targets, size),
+                    Arrays.copyOf(collapsed, size));
+        }
+    }
+}
@@ -12,7 +12,6 @@ import java.nio.file.Paths;
 import java.util.Objects;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.function.Function;
 
@@ -136,13 +135,23 @@ public class Main {
         };
 
         final Launcher<LanguageClient> launcher = createSocketLauncher(languageServer, LanguageClient.class,
-            new InetSocketAddress("localhost", Integer.parseInt(port)), Executors.newCachedThreadPool(), wrapper);
+            new InetSocketAddress("localhost", Integer.parseInt(port)), KtExecutors.rpc(), wrapper);
 
         languageServer.installClient(launcher.getRemoteProxy());
-        final Future<?> future = launcher.startListening();
-        while (!future.isDone()) {
-            Thread.sleep(10_000l);
+        awaitDisconnect(launcher.startListening());
+    }
+
+    /**
+     * Blocks until the client closes the connection; the server threads are
+     * daemons and would not keep the JVM alive.
+     */
+    private static void awaitDisconnect(Future<?> listening) throws InterruptedException {
+        try {
+            listening.get();
+        } catch (final ExecutionException e) {
+            LOG.error("connection failed", e);
         }
+        LOG.info("client disconnected");
     }
 
     /**
@@ -153,11 +162,18 @@ public class Main {
     public static void run(Socket connection) throws IOException {
         final KtLanguageServer server = new KtLanguageServer();
         final Launcher<LanguageClient> launcher = LSPLauncher.createServerLauncher(
-            server, connection.getInputStream(), connection.getOutputStream());
+            server, connection.getInputStream(), connection.getOutputStream(), KtExecutors.rpc(),
+            Function.identity());
 
         server.installClient(launcher.getRemoteProxy());
-        launcher.startListening();
+        final Future<?> listening = launcher.startListening();
         LOG.info(String.format("java.version is %s", System.getProperty("java.version")));
+
+        try {
+            awaitDisconnect(listening);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     static <T> Launcher<T> createSocketLauncher(Object localService, Class<T> remoteInterface,
@@ -1,5 +1,7 @@
 package kt.advance;
 
+import java.io.File;
+
 import org.eclipse.lsp4j.Diagnostic;
 import org.eclipse.lsp4j.DiagnosticSeverity;
 import org.eclipse.lsp4j.Position;
@@ -7,43 +9,56 @@ import org.eclipse.lsp4j.Range;
 
 import com.kt.advance.api.CLocation;
 import com.kt.advance.api.Definitions;
-import com.kt.advance.api.Definitions.POLevel;
 import com.kt.advance.api.PO;
 import com.kt.advance.api.PPO;
 import com.kt.advance.api.SPO;
 
 public class POMapper {
 
-    private static Diagnostic convertImpl(PO po) {
+    static Diagnostic diagnostic(int severity, String code, String message, boolean primary, int line) {
 
         final Diagnostic diagnostic = new Diagnostic();
-        final DiagnosticSeverity severity = severity(po);
 
-        diagnostic.setSeverity(severity);
+        diagnostic.setSeverity(DiagnosticSeverity.forValue(severity));
 
-        diagnostic.setCode(po.getPredicate().type.label);
-        diagnostic.setMessage(description(po));
-        diagnostic.setSource(po.getLevel() == POLevel.PRIMARY ? "KT Advance" : "KT Advance [secondary]");
+        diagnostic.setCode(code);
+        diagnostic.setMessage(message);
+        diagnostic.setSource(primary ? "KT Advance" : "KT Advance [secondary]");
+        diagnostic.setRange(lineRange(line));
 
         return diagnostic;
 
     }
 
-    public static Diagnostic convert(SPO po) {
-        final Range range = position(po.getSite().getLocation());
-        Diagnostic diagnostic = convertImpl(po);
-        diagnostic.setRange(range);
+    /**
+     * @return diagnostic standing in for the POs of a file that were not
+     *         published
+     */
+    static Diagnostic omitted(int count, int nextPage) {
+        final Diagnostic diagnostic = new Diagnostic();
+
+        diagnostic.setSeverity(DiagnosticSeverity.Information);
+        diagnostic.setCode("omitted");
+        diagnostic.setMessage(count
+                + " more proof obligations are not shown; run the command "
+                + KtWorkspaceService.SHOW_MORE_DIAGNOSTICS
+                + " to see the next "
+                + nextPage);
+        diagnostic.setSource("KT Advance");
+        diagnostic.setRange(lineRange(0));
+
         return diagnostic;
     }
 
-    public static Diagnostic convert(PPO po) {
-        final Range range = position(po.getLocation());
-        Diagnostic diagnostic = convertImpl(po);
-        diagnostic.setRange(range);
-        return diagnostic;
+    public static void convert(SPO po, File file, POStore.Builder store) {
+        store.add(file, po, po.getSite().getLocation());
     }
 
-    private static DiagnosticSeverity severity(PO po) {
+    public static void convert(PPO po, File file, POStore.Builder store) {
+        store.add(file, po, po.getLocation());
+    }
+
+    static DiagnosticSeverity severity(PO po) {
         switch (po.getStatus()) {
         case violation:
             return DiagnosticSeverity.Error;
@@ -57,33 +72,70 @@ public class POMapper {
     }
 
     static String description(PO po) {
-        final StringBuffer sb = new StringBuffer();
+        return description(
+            po.getId(),
+            po.getStatus().label,
+            po.getPredicate().type.label,
+            po.getExplaination(),
+            po.getPredicate().express(),
+            deps(po));
+    }
 
-        sb.append("#").append(po.getId()).append("\t");
-        sb.append("<").append(po.getStatus().label).append(">\t ");
-        sb.append(po.getPredicate().type.label).append("; \n");
+    static String description(int id, String status, String predicate, String explanation, String expression,
+            String deps) {
+        final StringBuilder sb = new StringBuilder();
+
+        sb.append("#").append(id).append("\t");
+        sb.append("<").append(status).append(">\t ");
+        sb.append(predicate).append("; \n");
 
         // sb.append(po.getLevel() == POLevel.SECONDARY ? "Secondary; " : "");
-        if (null != po.getExplaination()) {
-            sb.append(po.getExplaination());
+        if (null != explanation) {
+            sb.append(explanation);
         }
-        sb.append("\n").append(po.getPredicate().express());
+        sb.append("\n").append(expression);
 
-        if (po.getDeps().level != Definitions.DepsLevel.s /* self */
-                && po.getDeps().level != Definitions.DepsLevel.i /* unknown */) {
-            sb.append("\n").append(po.getDeps().level.toString());
+        if (deps != null) {
+            sb.append("\n").append(deps);
         }
 
         return sb.toString();
     }
 
+    /**
+     * @return dependencies level worth mentioning, or null
+     */
+    static String deps(PO po) {
+        if (po.getDeps().level != Definitions.DepsLevel.s /* self */
+                && po.getDeps().level != Definitions.DepsLevel.i /* unknown */) {
+            return po.getDeps().level.toString();
+        }
+        return null;
+    }
+
     static Range position(CLocation loc) {
+        return lineRange(line(loc));
+    }
+
+    /**
+     * @return zero-based line of the location
+     */
+    static int line(CLocation loc) {
 
         int lineNumber = loc.getLine();
 
         if (lineNumber > 0) {
             lineNumber = lineNumber - 1;
         }
+        return lineNumber;
+    }
+
+    /**
+     * @param lineNumber
+     *            zero-based line
+     * @return range covering the whole line
+     */
+    static Range lineRange(int lineNumber) {
         return new Range(new Position(lineNumber, 0), new Position(lineNumber, Integer.MAX_VALUE));
     }
 }
@@ -0,0 +1,859 @@
+package kt.advance;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import org.eclipse.lsp4j.Diagnostic;
+
+import com.kt.advance.api.CLocation;
+import com.kt.advance.api.Definitions.POLevel;
+import com.kt.advance.api.PO;
+
+/**
+ * Immutable, column-oriented storage of the proof obligations of one
+ * application. Every PO is a row of a few primitive arrays; strings are
+ * dictionary-encoded. Rows of one source file are contiguous and kept in
+ * {@link #ROW_ORDER}, so {@link Diagnostic}s can be built on demand for the
+ * files being published, already sorted.
+ *
+ * Diagnostic messages are rendered the first time a row is published and
+ * cached from then on. The expression of the PO's predicate is rendered while
+ * converting, so nothing of the parsed XML stays reachable; once the store is
+ * saved to the snapshot, the expressions are read back from the mapped
+ * snapshot instead.
+ *
+ * The C functions of the application are a second, smaller table: name, line
+ * and PO counts by status, aggregated once while the POs are collected. The
+ * calls between them are a {@link CallGraph} over the function indexes.
+ */
+class POStore {
+
+    static final POStore EMPTY = new Builder().build();
+
+    static final byte PRIMARY = 0;
+    static final byte SECONDARY = 1;
+
+    private final String[] strings;
+
+    private final int[] ids;
+    private final int[] lines;
+    private final byte[] severities;
+    private final byte[] levels;
+    private final int[] statuses;
+    private final int[] predicates;
+    private final int[] explanations;
+    private final int[] deps;
+    /**
+     * expression of the predicate, or null if it is in the snapshot at
+     * expressionAt[row]
+     */
+    private final String[] expressions;
+    /**
+     * snapshot the store was saved to or read from
+     */
+    private ByteBuffer saved;
+    private int[] expressionAt;
+    private final String[] messages;
+
+    private final File[] files;
+    /**
+     * rows of files[i] are fileStart[i] until fileStart[i + 1]
+     */
+    private final int[] fileStart;
+    private final Map<File, Integer> fileIndex = new HashMap<>();
+    /**
+     * rows of each file ordered by line, built on the first lookup of the
+     * file and published to the other threads through the array
+     */
+    private final AtomicReferenceArray<int[]> rowsByLine;
+
+    /**
+     * function names, as indexes of strings
+     */
+    private final int[] functionNames;
+    /**
+     * zero-based line of the first PO of each function, -1 if it has none
+     */
+    private final int[] functionLines;
+    /**
+     * PO counts of function i by severity s are at i * 4 + s - 1
+     */
+    private final int[] functionCounts;
+    /**
+     * functions of files[i] are functionStart[i] until functionStart[i + 1],
+     * ordered by line
+     */
+    private final int[] functionStart;
+    /**
+     * index of the file of every function
+     */
+    private final int[] functionFiles;
+    private final CallGraph calls;
+
+    private static final class Filtered {
+        final DiagnosticFilter filter;
+        final BitSet rows;
+
+        Filtered(DiagnosticFilter filter, BitSet rows) {
+            this.filter = filter;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * rows accepted by the filter used last
+     */
+    private volatile Filtered filtered;
+
+    private POStore(String[] strings, int[] ids, int[] lines, byte[] severities, byte[] levels, int[] statuses,
+            int[] predicates, int[] explanations, int[] deps, String[] expressions, File[] files, int[] fileStart,
+            int[] functionNames, int[] functionLines, int[] functionCounts, int[] functionStart, CallGraph calls) {
+        this.strings = strings;
+        this.ids = ids;
+        this.lines = lines;
+        this.severities = severities;
+        this.levels = levels;
+        this.statuses = statuses;
+        this.predicates = predicates;
+        this.explanations = explanations;
+        this.deps = deps;
+        this.expressions = expressions;
+        this.messages = new String[ids.length];
+        this.files = files;
+        this.fileStart = fileStart;
+        this.rowsByLine = new AtomicReferenceArray<>(files.length);
+        this.functionNames = functionNames;
+        this.functionLines = functionLines;
+        this.functionCounts = functionCounts;
+        this.functionStart = functionStart;
+        this.functionFiles = new int[functionNames.length];
+        for (int f = 0; f < files.length; f++) {
+            Arrays.fill(functionFiles, functionStart[f], functionStart[f + 1], f);
+        }
+        this.calls = calls;
+
+        for (int i = 0; i < files.length; i++) {
+            fileIndex.put(files[i], i);
+        }
+    }
+
+    Set<File> files() {
+        return Collections.unmodifiableSet(fileIndex.keySet());
+    }
+
+    boolean contains(File file) {
+        return fileIndex.containsKey(file);
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return number of POs in the file
+     */
+    int size(File file) {
+        final Integer f = fileIndex.get(file);
+        return f == null ? 0 : fileStart[f + 1] - fileStart[f];
+    }
+
+    /**
+     * @return the functions of the file that have POs, ordered by line
+     */
+    List<FunctionSummary> functions(File file) {
+        final Integer f = fileIndex.get(file);
+        if (f == null) {
+            return Collections.emptyList();
+        }
+
+        final List<FunctionSummary> list = new ArrayList<>(functionStart[f + 1] - functionStart[f]);
+        for (int fn = functionStart[f]; fn < functionStart[f + 1]; fn++) {
+            if (functionLines[fn] >= 0) {
+                list.add(function(fn, files[f]));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return all functions that have POs, grouped by file
+     */
+    List<FunctionSummary> functions() {
+        final List<FunctionSummary> list = new ArrayList<>(functionNames.length);
+        for (int f = 0; f < files.length; f++) {
+            for (int fn = functionStart[f]; fn < functionStart[f + 1]; fn++) {
+                if (functionLines[fn] >= 0) {
+                    list.add(function(fn, files[f]));
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return functions called on the line of the file
+     */
+    List<FunctionSummary> callees(File file, int line) {
+        final Integer f = fileIndex.get(file);
+        if (f == null) {
+            return Collections.emptyList();
+        }
+
+        final List<FunctionSummary> result = new ArrayList<>();
+        calls.callees(file, line, callee -> {
+            // a function without POs has no known location
+            if (functionLines[callee] >= 0) {
+                result.add(function(callee, files[functionFiles[callee]]));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return file and zero-based line of every call to the functions of the
+     *         file with the given name
+     */
+    List<SimpleImmutableEntry<File, Integer>> callers(File file, String name) {
+        final Integer f = fileIndex.get(file);
+        if (f == null) {
+            return Collections.emptyList();
+        }
+
+        final List<SimpleImmutableEntry<File, Integer>> result = new ArrayList<>();
+        for (int fn = functionStart[f]; fn < functionStart[f + 1]; fn++) {
+            if (name.equals(string(functionNames[fn]))) {
+                calls.callers(fn, (caller, line) -> result.add(
+                    new SimpleImmutableEntry<>(files[functionFiles[caller]], line)));
+            }
+        }
+        return result;
+    }
+
+    private FunctionSummary function(int fn, File file) {
+        return new FunctionSummary(
+                string(functionNames[fn]),
+                file,
+                functionLines[fn],
+                Arrays.copyOfRange(functionCounts, fn * 4, fn * 4 + 4));
+    }
+
+    /**
+     * A row of a store, for merging the rows of several stores before their
+     * diagnostics are built.
+     */
+    static final class Row {
+        private final POStore store;
+        private final int row;
+
+        private Row(POStore store, int row) {
+            this.store = store;
+            this.row = row;
+        }
+
+        Diagnostic diagnostic() {
+            return store.diagnostic(row);
+        }
+    }
+
+    /**
+     * Order of the rows of a file: by status, predicate and PO id; meant for
+     * stable sorts, rows of the same PO id keep their order.
+     */
+    static final Comparator<Row> ROW_ORDER = Comparator.<Row> comparingInt(r -> r.store.severities[r.row])
+            .thenComparing(r -> r.store.strings[r.store.predicates[r.row]])
+            .thenComparingInt(r -> r.store.ids[r.row]);
+
+    /**
+     * Adds the rows of the file the filter accepts, in {@link #ROW_ORDER}.
+     */
+    void rows(File file, DiagnosticFilter filter, List<Row> result) {
+        final Integer f = fileIndex.get(file);
+        if (f != null) {
+            forEachRow(f, filter, row -> result.add(new Row(this, row)));
+        }
+    }
+
+    /**
+     * Builds the diagnostics of the file; only their messages are cached.
+     *
+     * @return immutable list
+     */
+    List<Diagnostic> diagnostics(File file) {
+        return diagnostics(file, DiagnosticFilter.ALL);
+    }
+
+    /**
+     * Builds the diagnostics of the file the filter accepts.
+     *
+     * @return immutable list
+     */
+    List<Diagnostic> diagnostics(File file, DiagnosticFilter filter) {
+        final Integer f = fileIndex.get(file);
+        if (f == null) {
+            return Collections.emptyList();
+        }
+
+        final List<Diagnostic> list = new ArrayList<>(fileStart[f + 1] - fileStart[f]);
+        forEachRow(f, filter, row -> list.add(diagnostic(row)));
+        return Collections.unmodifiableList(list);
+    }
+
+    private void forEachRow(int f, DiagnosticFilter filter, IntConsumer action) {
+        if (filter == DiagnosticFilter.ALL) {
+            for (int row = fileStart[f]; row < fileStart[f + 1]; row++) {
+                action.accept(row);
+            }
+        } else {
+            final BitSet rows = rows(filter);
+            for (int row = rows.nextSetBit(fileStart[f]); row >= 0 && row < fileStart[f + 1];
+                    row = rows.nextSetBit(row + 1)) {
+                action.accept(row);
+            }
+        }
+    }
+
+    /**
+     * Evaluates the filter over all rows at once; the result is kept until a
+     * different filter is asked for.
+     */
+    private BitSet rows(DiagnosticFilter filter) {
+        final Filtered cached = filtered;
+        if (cached != null && cached.filter.equals(filter)) {
+            return cached.rows;
+        }
+
+        final boolean[] predicateAccepted = new boolean[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            predicateAccepted[i] = filter.acceptsPredicate(strings[i]);
+        }
+
+        final BitSet rows = new BitSet(ids.length);
+        for (int row = 0; row < ids.length; row++) {
+            if (predicateAccepted[predicates[row]] && filter.accepts(severities[row], levels[row] == PRIMARY)) {
+                rows.set(row);
+            }
+        }
+
+        filtered = new Filtered(filter, rows);
+        return rows;
+    }
+
+    /**
+     * Looks up the POs on the lines by binary search over the rows of the
+     * file ordered by line.
+     *
+     * @return messages of the POs from line fromLine to toLine (inclusive)
+     *         that the filter accepts
+     */
+    List<String> messages(File file, int fromLine, int toLine, DiagnosticFilter filter) {
+        final Integer f = fileIndex.get(file);
+        if (f == null) {
+            return Collections.emptyList();
+        }
+
+        final int[] rows = rowsByLine(f);
+        final BitSet accepted = filter == DiagnosticFilter.ALL ? null : rows(filter);
+        final List<String> result = new ArrayList<>();
+        for (int i = firstOnOrAfter(rows, fromLine); i < rows.length && lines[rows[i]] <= toLine; i++) {
+            if (accepted == null || accepted.get(rows[i])) {
+                result.add(message(rows[i]));
+            }
+        }
+        return result;
+    }
+
+    private int[] rowsByLine(int f) {
+        int[] rows = rowsByLine.get(f);
+        if (rows == null) {
+            // stable, rows of a line stay in diagnostics order
+            rows = IntStream.range(fileStart[f], fileStart[f + 1])
+                    .boxed()
+                    .sorted(Comparator.comparingInt(row -> lines[row]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            // racing threads compute the same
+            rowsByLine.set(f, rows);
+        }
+        return rows;
+    }
+
+    /**
+     * @return index of the first row on the line or after it
+     */
+    private int firstOnOrAfter(int[] rows, int line) {
+        int low = 0;
+        int high = rows.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (lines[rows[mid]] < line) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private Diagnostic diagnostic(int row) {
+        return POMapper.diagnostic(
+            severities[row],
+            strings[predicates[row]],
+            message(row),
+            levels[row] == PRIMARY,
+            lines[row]);
+    }
+
+    private String message(int row) {
+        String message = messages[row];
+        if (message == null) {
+            message = POMapper.description(
+                ids[row],
+                strings[statuses[row]],
+                strings[predicates[row]],
+                string(explanations[row]),
+                expression(row),
+                string(deps[row]));
+            messages[row] = message;
+        }
+        return message;
+    }
+
+    /**
+     * @return the expression, without caching it; the message it goes into is
+     *         cached
+     */
+    private String expression(int row) {
+        synchronized (this) {
+            final String expression = expressions[row];
+            if (expression != null) {
+                return expression;
+            }
+            final ByteBuffer in = saved.duplicate();
+            in.position(expressionAt[row]);
+            return DiagnosticsSnapshot.readString(in);
+        }
+    }
+
+    /**
+     * Lets the rows read their expressions from the snapshot instead of
+     * keeping them in memory.
+     *
+     * @param snapshot
+     *            the snapshot, or the part of it the store was written to
+     * @param at
+     *            position of the expression of every row in the snapshot, as
+     *            returned by {@link #write}
+     */
+    synchronized void saved(ByteBuffer snapshot, int[] at) {
+        saved = snapshot;
+        expressionAt = at;
+        Arrays.fill(expressions, null);
+    }
+
+    private String string(int index) {
+        return index < 0 ? null : strings[index];
+    }
+
+    /**
+     * Writes the store.
+     *
+     * @return position of the expression of every row in the output
+     */
+    int[] write(DataOutputStream out) throws IOException {
+        out.writeInt(strings.length);
+        for (final String s : strings) {
+            DiagnosticsSnapshot.writeString(out, s);
+        }
+
+        out.writeInt(files.length);
+        for (int i = 0; i < files.length; i++) {
+            DiagnosticsSnapshot.writeString(out, files[i].getPath());
+            out.writeInt(fileStart[i + 1]);
+        }
+
+        final int[] at = new int[ids.length];
+        for (int row = 0; row < ids.length; row++) {
+            out.writeInt(ids[row]);
+            out.writeInt(lines[row]);
+            out.writeByte(severities[row]);
+            out.writeByte(levels[row]);
+            out.writeInt(statuses[row]);
+            out.writeInt(predicates[row]);
+            out.writeInt(explanations[row]);
+            out.writeInt(deps[row]);
+            at[row] = out.size();
+            DiagnosticsSnapshot.writeString(out, expression(row));
+        }
+
+        for (int i = 0; i < files.length; i++) {
+            out.writeInt(functionStart[i + 1]);
+        }
+        for (int fn = 0; fn < functionNames.length; fn++) {
+            out.writeInt(functionNames[fn]);
+            out.writeInt(functionLines[fn]);
+            for (int s = 0; s < 4; s++) {
+                out.writeInt(functionCounts[fn * 4 + s]);
+            }
+        }
+        calls.write(out);
+        return at;
+    }
+
+    static POStore read(ByteBuffer in) {
+        final String[] strings = new String[in.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = DiagnosticsSnapshot.readString(in);
+        }
+
+        final File[] files = new File[in.getInt()];
+        final int[] fileStart = new int[files.length + 1];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(DiagnosticsSnapshot.readString(in));
+            fileStart[i + 1] = in.getInt();
+        }
+
+        final int size = fileStart[files.length];
+        final int[] ids = new int[size];
+        final int[] lines = new int[size];
+        final byte[] severities = new byte[size];
+        final byte[] levels = new byte[size];
+        final int[] statuses = new int[size];
+        final int[] predicates = new int[size];
+        final int[] explanations = new int[size];
+        final int[] deps = new int[size];
+        final String[] expressions = new String[size];
+        final int[] at = new int[size];
+
+        for (int row = 0; row < size; row++) {
+            ids[row] = in.getInt();
+            lines[row] = in.getInt();
+            severities[row] = in.get();
+            levels[row] = in.get();
+            statuses[row] = in.getInt();
+            predicates[row] = in.getInt();
+            explanations[row] = in.getInt();
+            deps[row] = in.getInt();
+            at[row] = in.position();
+            DiagnosticsSnapshot.skipString(in);
+        }
+
+        final int[] functionStart = new int[files.length + 1];
+        for (int i = 0; i < files.length; i++) {
+            functionStart[i + 1] = in.getInt();
+        }
+        final int functionCount = functionStart[files.length];
+        final int[] functionNames = new int[functionCount];
+        final int[] functionLines = new int[functionCount];
+        final int[] functionCounts = new int[functionCount * 4];
+        for (int fn = 0; fn < functionCount; fn++) {
+            functionNames[fn] = in.getInt();
+            functionLines[fn] = in.getInt();
+            for (int s = 0; s < 4; s++) {
+                functionCounts[fn * 4 + s] = in.getInt();
+            }
+        }
+        final String[] names = new String[functionCount];
+        final File[] sourceFiles = new File[functionCount];
+        for (int i = 0; i < files.length; i++) {
+            for (int fn = functionStart[i]; fn < functionStart[i + 1]; fn++) {
+                names[fn] = functionNames[fn] < 0 ? null : strings[functionNames[fn]];
+                sourceFiles[fn] = files[i];
+            }
+        }
+        final CallGraph calls = CallGraph.read(in, names, sourceFiles);
+
+        final POStore store = new POStore(strings, ids, lines, severities, levels, statuses, predicates,
+                explanations, deps, expressions, files, fileStart, functionNames, functionLines, functionCounts,
+                functionStart, calls);
+        store.saved(in.duplicate(), at);
+        return store;
+    }
+
+    /**
+     * Collects POs of an application in any order. Not thread-safe.
+     *
+     * POs and callsites added after {@link #function} belong to that function.
+     */
+    static class Builder {
+        private final Map<String, Integer> dictionary = new LinkedHashMap<>();
+        private final Map<File, Integer> fileIds = new LinkedHashMap<>();
+
+        private int size;
+        private int[] files = new int[64];
+        private int[] ids = new int[64];
+        private int[] lines = new int[64];
+        private byte[] severities = new byte[64];
+        private byte[] levels = new byte[64];
+        private int[] statuses = new int[64];
+        private int[] predicates = new int[64];
+        private int[] explanations = new int[64];
+        private int[] deps = new int[64];
+        private String[] expressions = new String[64];
+
+        private int functionCount;
+        private int function = -1;
+        private int[] functionFiles = new int[16];
+        private int[] functionNames = new int[16];
+        private int[] functionLines = new int[16];
+        private int[] functionCounts = new int[16 * 4];
+
+        private int callCount;
+        private int[] callFunctions = new int[16];
+        private int[] callLines = new int[16];
+
+        /**
+         * Starts a function; the POs added next are its POs.
+         */
+        Builder function(File file, String name) {
+            ensureFunctionCapacity(functionCount + 1);
+
+            functionFiles[functionCount] = fileId(file);
+            functionNames[functionCount] = intern(name);
+            functionLines[functionCount] = -1;
+            function = functionCount++;
+
+            return this;
+        }
+
+        /**
+         * Adds a callsite of the current function.
+         */
+        Builder callsite(CLocation location) {
+            if (function >= 0) {
+                if (callCount == callFunctions.length) {
+                    callFunctions = Arrays.copyOf(callFunctions, callCount * 2);
+                    callLines = Arrays.copyOf(callLines, callCount * 2);
+                }
+                callFunctions[callCount] = function;
+                callLines[callCount] = POMapper.line(location);
+                callCount++;
+            }
+            return this;
+        }
+
+        Builder add(File file, PO po, CLocation location) {
+            ensureCapacity(size + 1);
+
+            files[size] = fileId(file);
+            ids[size] = po.getId();
+            lines[size] = POMapper.line(location);
+            severities[size] = (byte) POMapper.severity(po).getValue();
+            levels[size] = po.getLevel() == POLevel.PRIMARY ? PRIMARY : SECONDARY;
+            statuses[size] = intern(po.getStatus().label);
+            predicates[size] = intern(po.getPredicate().type.label);
+            explanations[size] = intern(po.getExplaination());
+            deps[size] = intern(POMapper.deps(po));
+            expressions[size] = po.getPredicate().express();
+
+            if (function >= 0) {
+                if (functionLines[function] < 0 || lines[size] < functionLines[function]) {
+                    functionLines[function] = lines[size];
+                }
+                functionCounts[function * 4 + severities[size] - 1]++;
+            }
+            size++;
+
+            return this;
+        }
+
+        /**
+         * Appends all rows of another builder, e.g. a partial result of a
+         * parallel conversion.
+         */
+        Builder merge(Builder other) {
+            ensureCapacity(size + other.size);
+
+            final int[] stringMap = new int[other.dictionary.size()];
+            other.dictionary.forEach((string, index) -> stringMap[index] = intern(string));
+            final int[] fileMap = new int[other.fileIds.size()];
+            other.fileIds.forEach((file, index) -> fileMap[index] = fileId(file));
+
+            for (int row = 0; row < other.size; row++) {
+                files[size] = fileMap[other.files[row]];
+                ids[size] = other.ids[row];
+                lines[size] = other.lines[row];
+                severities[size] = other.severities[row];
+                levels[size] = other.levels[row];
+                statuses[size] = stringMap[other.statuses[row]];
+                predicates[size] = stringMap[other.predicates[row]];
+                explanations[size] = other.explanations[row] < 0 ? -1 : stringMap[other.explanations[row]];
+                deps[size] = other.deps[row] < 0 ? -1 : stringMap[other.deps[row]];
+                expressions[size] = other.expressions[row];
+                size++;
+            }
+
+            if (callCount + other.callCount > callFunctions.length) {
+                callFunctions = Arrays.copyOf(callFunctions, callCount + other.callCount);
+                callLines = Arrays.copyOf(callLines, callCount + other.callCount);
+            }
+            for (int c = 0; c < other.callCount; c++) {
+                callFunctions[callCount] = functionCount + other.callFunctions[c];
+                callLines[callCount] = other.callLines[c];
+                callCount++;
+            }
+
+            ensureFunctionCapacity(functionCount + other.functionCount);
+            for (int fn = 0; fn < other.functionCount; fn++) {
+                functionFiles[functionCount] = fileMap[other.functionFiles[fn]];
+                functionNames[functionCount] = other.functionNames[fn] < 0 ? -1 : stringMap[other.functionNames[fn]];
+                functionLines[functionCount] = other.functionLines[fn];
+                System.arraycopy(other.functionCounts, fn * 4, functionCounts, functionCount * 4, 4);
+                functionCount++;
+            }
+            // the functions of the other builder are complete
+            function = -1;
+
+            return this;
+        }
+
+        private int fileId(File file) {
+            return fileIds.computeIfAbsent(file, f -> fileIds.size());
+        }
+
+        private void ensureCapacity(int required) {
+            if (required > ids.length) {
+                final int capacity = Math.max(required, ids.length * 2);
+                files = Arrays.copyOf(files, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+                lines = Arrays.copyOf(lines, capacity);
+                severities = Arrays.copyOf(severities, capacity);
+                levels = Arrays.copyOf(levels, capacity);
+                statuses = Arrays.copyOf(statuses, capacity);
+                predicates = Arrays.copyOf(predicates, capacity);
+                explanations = Arrays.copyOf(explanations, capacity);
+                deps = Arrays.copyOf(deps, capacity);
+                expressions = Arrays.copyOf(expressions, capacity);
+            }
+        }
+
+        private void ensureFunctionCapacity(int required) {
+            if (required > functionFiles.length) {
+                final int capacity = Math.max(required, functionFiles.length * 2);
+                functionFiles = Arrays.copyOf(functionFiles, capacity);
+                functionNames = Arrays.copyOf(functionNames, capacity);
+                functionLines = Arrays.copyOf(functionLines, capacity);
+                functionCounts = Arrays.copyOf(functionCounts, capacity * 4);
+            }
+        }
+
+        private int intern(String s) {
+            return s == null ? -1 : dictionary.computeIfAbsent(s, k -> dictionary.size());
+        }
+
+        POStore build() {
+            final String[] strings = dictionary.keySet().toArray(new String[dictionary.size()]);
+
+            // ROW_ORDER grouped by file; rows of the same PO id stay in the
+            // order they were added
+            final Comparator<Integer> order = Comparator.<Integer> comparingInt(row -> files[row])
+                    .thenComparingInt(row -> severities[row])
+                    .thenComparing(row -> strings[predicates[row]])
+                    .thenComparingInt(row -> ids[row]);
+            final int[] rows = IntStream.range(0, size)
+                    .boxed()
+                    .sorted(order)
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+
+            final File[] fileArray = fileIds.keySet().toArray(new File[fileIds.size()]);
+            final int[] fileStart = new int[fileArray.length + 1];
+            for (int i = 0; i < size; i++) {
+                fileStart[files[i] + 1]++;
+            }
+            for (int i = 0; i < fileArray.length; i++) {
+                fileStart[i + 1] += fileStart[i];
+            }
+
+            final int[] functions = IntStream.range(0, functionCount)
+                    .boxed()
+                    .sorted(Comparator.<Integer> comparingInt(fn -> functionFiles[fn])
+                            .thenComparingInt(fn -> functionLines[fn]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            final int[] functionStart = new int[fileArray.length + 1];
+            for (int fn = 0; fn < functionCount; fn++) {
+                functionStart[functionFiles[fn] + 1]++;
+            }
+            for (int i = 0; i < fileArray.length; i++) {
+                functionStart[i + 1] += functionStart[i];
+            }
+            final int[] counts = new int[functionCount * 4];
+            for (int i = 0; i < functionCount; i++) {
+                System.arraycopy(functionCounts, functions[i] * 4, counts, i * 4, 4);
+            }
+
+            // callsites refer to the functions in their new order
+            final int[] functionIndex = new int[functionCount];
+            final String[] names = new String[functionCount];
+            final File[] sourceFiles = new File[functionCount];
+            for (int i = 0; i < functionCount; i++) {
+                functionIndex[functions[i]] = i;
+                names[i] = functionNames[functions[i]] < 0 ? null : strings[functionNames[functions[i]]];
+                sourceFiles[i] = fileArray[functionFiles[functions[i]]];
+            }
+            final int[] callers = new int[callCount];
+            for (int c = 0; c < callCount; c++) {
+                callers[c] = functionIndex[callFunctions[c]];
+            }
+
+            return new POStore(
+                    strings,
+                    permute(ids, rows),
+                    permute(lines, rows),
+                    permute(severities, rows),
+                    permute(levels, rows),
+                    permute(statuses, rows),
+                    permute(predicates, rows),
+                    permute(explanations, rows),
+                    permute(deps, rows),
+                    permute(expressions, rows),
+                    fileArray,
+                    fileStart,
+                    permute(functionNames, functions),
+                    permute(functionLines, functions),
+                    counts,
+                    functionStart,
+                    new CallGraph(names, sourceFiles, callers, callLines, callCount));
+        }
+
+        private static int[] permute(int[] column, int[] rows) {
+            final int[] result = new int[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                result[i] = column[rows[i]];
+            }
+            return result;
+        }
+
+        private static String[] permute(String[] column, int[] rows) {
+            final String[] result = new String[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                result[i] = column[rows[i]];
+            }
+            return result;
+        }
+
+        private static byte[] permute(byte[] column, int[] rows) {
+            final byte[] result = new byte[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                result[i] = column[rows[i]];
+            }
+            return result;
+        }
+    }
+}
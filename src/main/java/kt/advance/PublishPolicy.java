@@ -0,0 +1,37 @@
+package kt.advance;
+
+import java.util.logging.Logger;
+
+/**
+ * Which source files get their diagnostics published. Names match the values
+ * of the "kt.publishDiagnostics" client setting.
+ */
+enum PublishPolicy {
+    /**
+     * files open in the editor
+     */
+    open,
+    /**
+     * open files and the files next to them, in the same directory
+     */
+    neighbors,
+    /**
+     * every file of the analysis
+     */
+    workspace;
+
+    /**
+     * @return policy set with -Dktls.publishDiagnostics, {@link #open} by
+     *         default or if the value is not one of the policies
+     */
+    static PublishPolicy fromProperty() {
+        final String value = System.getProperty("ktls.publishDiagnostics", open.name());
+        try {
+            return valueOf(value);
+        } catch (final IllegalArgumentException e) {
+            Logger.getLogger("main").warning("unknown -Dktls.publishDiagnostics=" + value
+                    + ", publishing the diagnostics of open files");
+            return open;
+        }
+    }
+}
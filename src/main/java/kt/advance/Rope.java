@@ -0,0 +1,245 @@
+package kt.advance;
+
+/**
+ * Immutable, balanced tree of text chunks. An edit shares every untouched
+ * chunk with the previous version, so replacing a range costs O(log n) instead
+ * of copying the document, and older versions stay valid snapshots.
+ *
+ * Every node knows the number of '\n' below it, which makes it its own line
+ * index: LSP positions are resolved to offsets in O(log n) as well.
+ */
+final class Rope {
+
+    static final Rope EMPTY = new Rope("");
+
+    /**
+     * max chars in a leaf
+     */
+    private static final int CHUNK = 512;
+
+    /**
+     * text of a leaf, null for inner nodes
+     */
+    private final String text;
+    private final Rope left;
+    private final Rope right;
+
+    private final int length;
+    private final int newlines;
+    private final int height;
+
+    private Rope(String text) {
+        this.text = text;
+        this.left = null;
+        this.right = null;
+        this.length = text.length();
+        this.height = 0;
+
+        int n = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                n++;
+            }
+        }
+        this.newlines = n;
+    }
+
+    private Rope(Rope left, Rope right) {
+        this.text = null;
+        this.left = left;
+        this.right = right;
+        this.length = left.length + right.length;
+        this.newlines = left.newlines + right.newlines;
+        this.height = Math.max(left.height, right.height) + 1;
+    }
+
+    static Rope of(String text) {
+        return build(text, 0, text.length());
+    }
+
+    private static Rope build(String text, int from, int to) {
+        if (to - from <= CHUNK) {
+            return new Rope(text.substring(from, to));
+        }
+        final int mid = (from + to) >>> 1;
+        return new Rope(build(text, from, mid), build(text, mid, to));
+    }
+
+    int length() {
+        return length;
+    }
+
+    private boolean isLeaf() {
+        return text != null;
+    }
+
+    /**
+     * @return text with the chars from start (inclusive) to end (exclusive)
+     *         replaced
+     */
+    Rope replace(int start, int end, String replacement) {
+        return concat(concat(prefix(start), of(replacement)), suffix(end));
+    }
+
+    /**
+     * Converts a zero-based LSP position to an offset. Characters past the end
+     * of the line are clamped to the line end, lines past the end of the text
+     * to the end of the text.
+     */
+    int offset(int line, int character) {
+        if (line < 0) {
+            return 0;
+        }
+        final int start = lineStart(line);
+        final int end = line >= newlines ? length : lineStart(line + 1) - 1;
+        return Math.min(start + Math.max(character, 0), end);
+    }
+
+    /**
+     * @return text of the zero-based line, without its '\n'; empty past the
+     *         end of the text
+     */
+    String line(int line) {
+        if (line < 0 || line > newlines) {
+            return "";
+        }
+        final int start = lineStart(line);
+        final int end = line == newlines ? length : lineStart(line + 1) - 1;
+        final StringBuilder sb = new StringBuilder(end - start);
+        append(sb, start, end);
+        return sb.toString();
+    }
+
+    /**
+     * @return offset right after the line-th '\n'
+     */
+    private int lineStart(int line) {
+        if (line <= 0) {
+            return 0;
+        }
+        if (line > newlines) {
+            return length;
+        }
+
+        Rope node = this;
+        int base = 0;
+        while (!node.isLeaf()) {
+            if (line <= node.left.newlines) {
+                node = node.left;
+            } else {
+                line -= node.left.newlines;
+                base += node.left.length;
+                node = node.right;
+            }
+        }
+
+        int i = -1;
+        while (line-- > 0) {
+            i = node.text.indexOf('\n', i + 1);
+        }
+        return base + i + 1;
+    }
+
+    private Rope prefix(int offset) {
+        if (offset <= 0) {
+            return EMPTY;
+        }
+        if (offset >= length) {
+            return this;
+        }
+        if (isLeaf()) {
+            return new Rope(text.substring(0, offset));
+        }
+        if (offset <= left.length) {
+            return left.prefix(offset);
+        }
+        return concat(left, right.prefix(offset - left.length));
+    }
+
+    private Rope suffix(int offset) {
+        if (offset <= 0) {
+            return this;
+        }
+        if (offset >= length) {
+            return EMPTY;
+        }
+        if (isLeaf()) {
+            return new Rope(text.substring(offset));
+        }
+        if (offset >= left.length) {
+            return right.suffix(offset - left.length);
+        }
+        return concat(left.suffix(offset), right);
+    }
+
+    /**
+     * AVL join: descends the taller tree until heights match, then rotates on
+     * the way back up.
+     */
+    private static Rope concat(Rope a, Rope b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        if (a.isLeaf() && b.isLeaf() && a.length + b.length <= CHUNK) {
+            return new Rope(a.text + b.text);
+        }
+        if (a.height > b.height + 1) {
+            return balance(a.left, concat(a.right, b));
+        }
+        if (b.height > a.height + 1) {
+            return balance(concat(a, b.left), b.right);
+        }
+        return new Rope(a, b);
+    }
+
+    private static Rope balance(Rope l, Rope r) {
+        if (l.height > r.height + 1) {
+            if (l.left.height >= l.right.height) {
+                return new Rope(l.left, new Rope(l.right, r));
+            }
+            return new Rope(new Rope(l.left, l.right.left), new Rope(l.right.right, r));
+        }
+        if (r.height > l.height + 1) {
+            if (r.right.height >= r.left.height) {
+                return new Rope(new Rope(l, r.left), r.right);
+            }
+            return new Rope(new Rope(l, r.left.left), new Rope(r.left.right, r.right));
+        }
+        return new Rope(l, r);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(length);
+        append(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the chars from start (inclusive) to end (exclusive), visiting
+     * only the nodes they are in.
+     */
+    private void append(StringBuilder sb, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        if (isLeaf()) {
+            sb.append(text, start, end);
+        } else {
+            left.append(sb, start, Math.min(end, left.length));
+            right.append(sb, Math.max(start - left.length, 0), end - left.length);
+        }
+    }
+
+    private void append(StringBuilder sb) {
+        if (isLeaf()) {
+            sb.append(text);
+        } else {
+            left.append(sb);
+            right.append(sb);
+        }
+    }
+}
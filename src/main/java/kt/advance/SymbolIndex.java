@@ -0,0 +1,238 @@
+package kt.advance;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds C functions by name across all loaded applications. Every application
+ * has its own immutable segment with a trigram index over the lower-cased
+ * function names, so segments are added as applications load and replaced
+ * when they are read again, without touching the others.
+ *
+ * A query of three or more characters only looks at the functions having all
+ * of its trigrams. Names are indexed with two leading {@link #START}
+ * characters, so shorter queries are looked up as prefixes. Only when that
+ * finds fewer functions than asked for are all names scanned for the query's
+ * characters in order, e.g. "rdbf" for read_buf; the empty query lists every
+ * function.
+ */
+final class SymbolIndex {
+
+    private static final String START = "\0\0";
+
+    private static final class Match {
+        final FunctionSummary function;
+        /**
+         * 0 for the whole name, 1 for a prefix, 2 for anywhere else, 3 for the
+         * characters in order with others between them
+         */
+        final int rank;
+        /**
+         * characters between the ones of the query, for rank 3
+         */
+        final int gaps;
+
+        Match(FunctionSummary function, int rank, int gaps) {
+            this.function = function;
+            this.rank = rank;
+            this.gaps = gaps;
+        }
+    }
+
+    /**
+     * functions with POs of one application and the trigram postings over
+     * their names
+     */
+    private static final class Segment {
+        final FunctionSummary[] functions;
+        final String[] names;
+        /**
+         * ascending function indexes by trigram
+         */
+        final Map<Long, int[]> postings;
+
+        Segment(List<FunctionSummary> functions) {
+            this.functions = functions.toArray(new FunctionSummary[functions.size()]);
+            this.names = new String[this.functions.length];
+            for (int fn = 0; fn < names.length; fn++) {
+                names[fn] = START + this.functions[fn].name.toLowerCase(Locale.ROOT);
+            }
+
+            // count first, so every posting list is allocated once; the last
+            // function seen per trigram skips repeated trigrams of a name
+            final Map<Long, int[]> counts = new HashMap<>();
+            for (int fn = 0; fn < names.length; fn++) {
+                for (int i = 0; i + 3 <= names[fn].length(); i++) {
+                    final int[] count = counts.computeIfAbsent(trigram(names[fn], i), k -> new int[] { 0, -1 });
+                    if (count[1] != fn) {
+                        count[0]++;
+                        count[1] = fn;
+                    }
+                }
+            }
+
+            postings = new HashMap<>(counts.size() * 4 / 3 + 1);
+            counts.forEach((trigram, count) -> postings.put(trigram, new int[count[0]]));
+            final Map<Long, int[]> filled = new HashMap<>(counts.size() * 4 / 3 + 1);
+            for (int fn = 0; fn < names.length; fn++) {
+                for (int i = 0; i + 3 <= names[fn].length(); i++) {
+                    final Long trigram = trigram(names[fn], i);
+                    final int[] posting = postings.get(trigram);
+                    final int[] size = filled.computeIfAbsent(trigram, k -> new int[1]);
+                    if (size[0] == 0 || posting[size[0] - 1] != fn) {
+                        posting[size[0]++] = fn;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param found
+         *            set to the indexes of the functions matched
+         */
+        void search(String query, List<Match> result, BitSet found) {
+            if (query.isEmpty()) {
+                for (int fn = 0; fn < functions.length; fn++) {
+                    result.add(new Match(functions[fn], 2, 0));
+                }
+                found.set(0, functions.length);
+                return;
+            }
+            final String q = query.length() < 3 ? (START + query).substring(query.length() - 1) : query;
+            final List<int[]> lists = new ArrayList<>();
+            for (int i = 0; i + 3 <= q.length(); i++) {
+                final int[] posting = postings.get(trigram(q, i));
+                if (posting == null) {
+                    return;
+                }
+                lists.add(posting);
+            }
+            lists.sort(Comparator.comparingInt(posting -> posting.length));
+
+            // walk the shortest list, binary search the others
+            candidates: for (final int fn : lists.get(0)) {
+                for (int l = 1; l < lists.size(); l++) {
+                    if (Arrays.binarySearch(lists.get(l), fn) < 0) {
+                        continue candidates;
+                    }
+                }
+                // all trigrams are there, but maybe not in this order
+                if (match(fn, query, result)) {
+                    found.set(fn);
+                }
+            }
+        }
+
+        private boolean match(int fn, String query, List<Match> result) {
+            final int at = names[fn].indexOf(query, START.length());
+            if (at == START.length()) {
+                result.add(new Match(functions[fn], names[fn].length() == at + query.length() ? 0 : 1, 0));
+            } else if (at > 0) {
+                result.add(new Match(functions[fn], 2, 0));
+            }
+            return at > 0;
+        }
+
+        /**
+         * Adds the functions not found yet whose name has the characters of
+         * the query in order, taking the first occurrence of each.
+         */
+        void searchScattered(String query, List<Match> result, BitSet found) {
+            for (int fn = found.nextClearBit(0); fn < names.length; fn = found.nextClearBit(fn + 1)) {
+                final String name = names[fn];
+                int at = START.length() - 1;
+                int first = -1;
+                for (int i = 0; i < query.length() && at < name.length(); i++) {
+                    at = name.indexOf(query.charAt(i), at + 1);
+                    if (at < 0) {
+                        at = name.length();
+                    } else if (first < 0) {
+                        first = at;
+                    }
+                }
+                if (at < name.length()) {
+                    result.add(new Match(functions[fn], 3, at + 1 - first - query.length()));
+                }
+            }
+        }
+    }
+
+    private final Map<File, Segment> segments = new ConcurrentHashMap<>();
+
+    /**
+     * Indexes the functions of an application, replacing what was indexed
+     * for it before.
+     */
+    void put(File appDir, POStore store) {
+        segments.put(appDir, new Segment(store.functions()));
+    }
+
+    void clear() {
+        segments.clear();
+    }
+
+    /**
+     * @param byOpenPOs
+     *            whether functions with more open POs come first among equally
+     *            good name matches
+     * @return functions whose name contains the query, ignoring case, or
+     *         starts with it if it is shorter than three characters, or else
+     *         has its characters in order; exact matches first, then
+     *         prefixes, then shorter names
+     */
+    List<FunctionSummary> search(String query, int limit, boolean byOpenPOs) {
+        final String q = query.toLowerCase(Locale.ROOT);
+
+        final List<Segment> searched = new ArrayList<>(segments.values());
+        final List<BitSet> found = new ArrayList<>(searched.size());
+        final List<Match> matches = new ArrayList<>();
+        for (final Segment segment : searched) {
+            final BitSet fns = new BitSet(segment.functions.length);
+            segment.search(q, matches, fns);
+            found.add(fns);
+        }
+        if (matches.size() < limit && !q.isEmpty()) {
+            for (int s = 0; s < searched.size(); s++) {
+                searched.get(s).searchScattered(q, matches, found.get(s));
+            }
+        }
+
+        Comparator<Match> order = Comparator.<Match> comparingInt(match -> match.rank)
+                .thenComparingInt(match -> match.gaps);
+        if (byOpenPOs) {
+            order = order.thenComparing(Comparator.comparingInt((Match match) -> match.function.open()).reversed());
+        }
+        order = order.thenComparingInt(match -> match.function.name.length())
+                .thenComparing(match -> match.function.name);
+
+        // keep the best ones only, short queries match most functions
+        final PriorityQueue<Match> best = new PriorityQueue<>(limit + 1, order.reversed());
+        for (final Match match : matches) {
+            if (best.size() < limit) {
+                best.add(match);
+            } else if (limit > 0 && order.compare(match, best.peek()) < 0) {
+                best.poll();
+                best.add(match);
+            }
+        }
+
+        final List<Match> sorted = new ArrayList<>(best);
+        sorted.sort(order);
+        final List<FunctionSummary> result = new ArrayList<>(sorted.size());
+        sorted.forEach(match -> result.add(match.function));
+        return result;
+    }
+
+    private static Long trigram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+}
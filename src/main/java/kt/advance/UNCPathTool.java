@@ -5,6 +5,10 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Optional;
 
 public class UNCPathTool {
 
@@ -30,4 +34,14 @@ public class UNCPathTool {
         return file;
     }
 
-}
\ No newline at end of file
+    /**
+     * @return the innermost of the given directories that contains the file
+     */
+    public static Optional<File> containingDir(Collection<File> dirs, File file) {
+        final Path path = file.toPath();
+        return dirs.stream()
+                .filter(dir -> path.startsWith(dir.toPath()))
+                .max(Comparator.comparingInt(dir -> dir.getPath().length()));
+    }
+
+}
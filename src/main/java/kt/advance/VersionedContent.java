@@ -1,11 +1,20 @@
 package kt.advance;
 
 class VersionedContent {
-    final String content;
+    final Rope content;
+    /**
+     * where the analyzed lines went after the edits made since opening
+     */
+    final LineMap lines;
     final int version;
 
     VersionedContent(String content, int version) {
+        this(Rope.of(content), LineMap.IDENTITY, version);
+    }
+
+    VersionedContent(Rope content, LineMap lines, int version) {
         this.content = content;
+        this.lines = lines;
         this.version = version;
     }
 }
@@ -0,0 +1,105 @@
+package kt.advance;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.junit.Test;
+
+public class LineMapTest {
+
+    private static Range range(int startLine, int startChar, int endLine, int endChar) {
+        return new Range(new Position(startLine, startChar), new Position(endLine, endChar));
+    }
+
+    @Test
+    public void typingWithinLineMovesNothing() {
+        assertSame(LineMap.IDENTITY, LineMap.IDENTITY.edit(range(3, 1, 3, 4), "abc"));
+    }
+
+    @Test
+    public void insertedLinesShiftTheRest() {
+        final LineMap map = LineMap.IDENTITY.edit(range(3, 2, 3, 2), "a\nb\n");
+        assertEquals(2, map.map(2));
+        assertEquals(3, map.map(3));
+        assertEquals(6, map.map(4));
+        assertEquals(1006, map.map(1004));
+        assertNull(map.unmap(4));
+        assertNull(map.unmap(5));
+        assertArrayEquals(new int[] { 4, 4 }, map.unmap(6));
+    }
+
+    @Test
+    public void insertAtLineStartPushesTheLineDown() {
+        final LineMap map = LineMap.IDENTITY.edit(range(3, 0, 3, 0), "x\n");
+        assertEquals(2, map.map(2));
+        assertEquals(4, map.map(3));
+        assertNull(map.unmap(3));
+        assertArrayEquals(new int[] { 3, 3 }, map.unmap(4));
+    }
+
+    @Test
+    public void deletedLinesGoToTheEditStart() {
+        final LineMap map = LineMap.IDENTITY.edit(range(2, 3, 5, 1), "");
+        assertEquals(2, map.map(2));
+        assertEquals(2, map.map(3));
+        assertEquals(2, map.map(5));
+        assertEquals(3, map.map(6));
+        assertArrayEquals(new int[] { 2, 5 }, map.unmap(2));
+        assertArrayEquals(new int[] { 6, 6 }, map.unmap(3));
+    }
+
+    @Test
+    public void deletionEndingAtLineStartKeepsTheLine() {
+        final LineMap map = LineMap.IDENTITY.edit(range(2, 3, 5, 0), "");
+        assertEquals(2, map.map(4));
+        assertEquals(2, map.map(5));
+        assertEquals(3, map.map(6));
+        assertArrayEquals(new int[] { 2, 5 }, map.unmap(2));
+    }
+
+    @Test
+    public void undoneInsertIsIdentity() {
+        final LineMap map = LineMap.IDENTITY.edit(range(2, 0, 2, 0), "a\n").edit(range(2, 0, 3, 0), "");
+        assertTrue(map.isIdentity());
+    }
+
+    @Test
+    public void randomEditsKeepTheOrder() {
+        final Random random = new Random(1);
+        for (int trial = 0; trial < 1000; trial++) {
+            final int analyzed = 1 + random.nextInt(30);
+            int lines = analyzed;
+            LineMap map = LineMap.IDENTITY;
+            for (int e = 1 + random.nextInt(8); e > 0; e--) {
+                final int startLine = random.nextInt(lines);
+                final int endLine = Math.min(lines - 1, startLine + random.nextInt(4));
+                final int startChar = random.nextInt(3);
+                final int endChar = endLine == startLine ? startChar + random.nextInt(2) : random.nextInt(3);
+                final int inserted = random.nextInt(3);
+                final StringBuilder text = new StringBuilder();
+                for (int i = 0; i < inserted; i++) {
+                    text.append("x\n");
+                }
+                map = map.edit(range(startLine, startChar, endLine, endChar), text.toString());
+                lines += inserted - (endLine - startLine);
+            }
+
+            for (int line = 0; line < analyzed; line++) {
+                final int current = map.map(line);
+                assertTrue(current >= 0 && current < lines);
+                if (line > 0) {
+                    assertTrue(map.map(line - 1) <= current);
+                }
+                final int[] analyzedLines = map.unmap(current);
+                assertTrue(analyzedLines[0] <= line && line <= analyzedLines[1]);
+            }
+        }
+    }
+}
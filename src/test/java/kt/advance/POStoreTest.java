@@ -0,0 +1,94 @@
+package kt.advance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.kt.advance.api.Definitions.POStatus;
+
+public class POStoreTest {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private static void assertSameContent(POStore expected, POStore actual, File... files) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.files(), actual.files());
+        for (final File file : files) {
+            assertEquals(expected.diagnostics(file), actual.diagnostics(file));
+            assertEquals(expected.messages(file, 0, 1000, DiagnosticFilter.ALL),
+                    actual.messages(file, 0, 1000, DiagnosticFilter.ALL));
+            assertEquals(expected.functions(file).toString(), actual.functions(file).toString());
+        }
+    }
+
+    private POStore roundTrip(File appDir, POStore store) {
+        final File snapshot = new File(temp.getRoot(), "snapshot.bin");
+        DiagnosticsSnapshot.save(snapshot,
+                Collections.singletonMap(appDir, new DiagnosticsSnapshot.AppEntry(42, store)));
+        return DiagnosticsSnapshot.load(snapshot).get(appDir, 42);
+    }
+
+    @Test
+    public void writeReadKeepsDiagnostics() {
+        final File a = new File("/app/a.c");
+        final File b = new File("/app/b.c");
+        final POStore.Builder builder = new POStore.Builder();
+        for (int i = 0; i < 3000; i++) {
+            if (i % 100 == 0) {
+                builder.function(i % 200 == 0 ? a : b, "fn" + i);
+            }
+            POMapper.convert(POs.ppo(i, POStatus.values()[i % 4], i % 100 + 1), i % 200 < 100 ? a : b, builder);
+        }
+        final POStore store = builder.build();
+
+        final POStore read = roundTrip(new File("/app"), store);
+        assertSameContent(store, read, a, b);
+        // expressions now come from the snapshot
+        assertSameContent(store, read, a, b);
+    }
+
+    @Test
+    public void writeReadEmpty() {
+        final POStore read = roundTrip(new File("/app"), POStore.EMPTY);
+        assertEquals(0, read.size());
+        assertTrue(read.files().isEmpty());
+    }
+
+    @Test
+    public void writeReadKeepsCalls() throws IOException {
+        final File appDir = temp.newFolder("app");
+        final File a = new File(appDir, "a.c");
+        Files.write(a.toPath(), Arrays.asList(
+                "int helper(int x) {",
+                "  return x;",
+                "}",
+                "int main() {",
+                "  return helper(1);",
+                "}"));
+
+        final POStore.Builder builder = new POStore.Builder();
+        builder.function(a, "helper");
+        POMapper.convert(POs.ppo(1, POStatus.open, 2), a, builder);
+        builder.function(a, "main");
+        POMapper.convert(POs.ppo(2, POStatus.discharged, 5), a, builder);
+        builder.callsite(() -> 5);
+        final POStore store = builder.build();
+
+        final POStore read = roundTrip(appDir, store);
+        assertSameContent(store, read, a);
+        assertEquals(store.callers(a, "helper"), read.callers(a, "helper"));
+        assertEquals(1, read.callers(a, "helper").size());
+        assertEquals(store.callees(a, 4).toString(), read.callees(a, 4).toString());
+        assertEquals("helper", read.callees(a, 4).get(0).name);
+    }
+}
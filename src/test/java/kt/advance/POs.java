@@ -0,0 +1,63 @@
+package kt.advance;
+
+import com.kt.advance.api.CLocation;
+import com.kt.advance.api.Definitions.DepsLevel;
+import com.kt.advance.api.Definitions.POLevel;
+import com.kt.advance.api.Definitions.POStatus;
+import com.kt.advance.api.PODependencies;
+import com.kt.advance.api.PPO;
+import com.kt.advance.api.PoPredicate;
+
+/**
+ * Proof obligations made up for tests, without reading any analysis
+ */
+final class POs {
+
+    private POs() {
+    }
+
+    /**
+     * @param line
+     *            one-based, as in the analysis
+     */
+    static PPO ppo(int id, POStatus status, int line) {
+        return new PPO() {
+            @Override
+            public int getId() {
+                return id;
+            }
+
+            @Override
+            public POStatus getStatus() {
+                return status;
+            }
+
+            @Override
+            public PoPredicate getPredicate() {
+                return () -> "expr" + id;
+            }
+
+            @Override
+            public POLevel getLevel() {
+                return POLevel.PRIMARY;
+            }
+
+            @Override
+            public String getExplaination() {
+                return "because " + id;
+            }
+
+            @Override
+            public PODependencies getDeps() {
+                final PODependencies deps = new PODependencies();
+                deps.level = DepsLevel.s;
+                return deps;
+            }
+
+            @Override
+            public CLocation getLocation() {
+                return () -> line;
+            }
+        };
+    }
+}
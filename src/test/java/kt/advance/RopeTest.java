@@ -0,0 +1,59 @@
+package kt.advance;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RopeTest {
+
+    private static String text(int lines) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append("line ").append(i).append(i % 7 == 0 ? "\n\n" : "\n");
+        }
+        return sb.append("tail").toString();
+    }
+
+    @Test
+    public void editsMatchString() {
+        final Random random = new Random(1);
+        String expected = text(2000);
+        Rope rope = Rope.of(expected);
+        for (int i = 0; i < 2000; i++) {
+            final int start = random.nextInt(expected.length() + 1);
+            final int end = Math.min(expected.length(), start + random.nextInt(random.nextInt(10) == 0 ? 5000 : 20));
+            final String replacement = random.nextInt(3) == 0 ? "" : "x" + i + (random.nextBoolean() ? "\n" : "");
+
+            expected = expected.substring(0, start) + replacement + expected.substring(end);
+            rope = rope.replace(start, end, replacement);
+            assertEquals(expected.length(), rope.length());
+        }
+        assertEquals(expected, rope.toString());
+    }
+
+    @Test
+    public void linesMatchSplit() {
+        final String text = text(5000);
+        final Rope rope = Rope.of(text);
+        final String[] lines = text.split("\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            assertEquals(lines[i], rope.line(i));
+        }
+        assertEquals("", rope.line(lines.length));
+        assertEquals("", rope.line(-1));
+    }
+
+    @Test
+    public void offsetClampsToLine() {
+        final Rope rope = Rope.of("ab\ncde\n\nf");
+        assertEquals(0, rope.offset(0, 0));
+        assertEquals(2, rope.offset(0, 10));
+        assertEquals(5, rope.offset(1, 2));
+        assertEquals(7, rope.offset(2, 3));
+        assertEquals(9, rope.offset(3, 1));
+        assertEquals(9, rope.offset(10, 0));
+        assertEquals(0, rope.offset(-1, 4));
+    }
+}
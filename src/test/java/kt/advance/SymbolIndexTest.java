@@ -0,0 +1,71 @@
+package kt.advance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.kt.advance.api.Definitions.POStatus;
+
+public class SymbolIndexTest {
+
+    private final SymbolIndex index = new SymbolIndex();
+
+    private static POStore store(File file, String... names) {
+        final POStore.Builder builder = new POStore.Builder();
+        for (int i = 0; i < names.length; i++) {
+            builder.function(file, names[i]);
+            POMapper.convert(POs.ppo(i, POStatus.open, i + 1), file, builder);
+        }
+        return builder.build();
+    }
+
+    private static List<String> names(List<FunctionSummary> functions) {
+        return functions.stream().map(fn -> fn.name).collect(Collectors.toList());
+    }
+
+    @Before
+    public void index() {
+        index.put(new File("/a"), store(new File("/a/io.c"), "read_buf", "write_buf", "read", "parse_xml"));
+        index.put(new File("/b"), store(new File("/b/list.c"), "list_free", "list_read", "reader"));
+    }
+
+    @Test
+    public void exactMatchFirst() {
+        final List<String> found = names(index.search("read", 10, false));
+        assertEquals("read", found.get(0));
+        assertTrue(found.containsAll(Arrays.asList("read_buf", "list_read", "reader")));
+    }
+
+    @Test
+    public void shortQueryIsPrefix() {
+        assertEquals(Arrays.asList("list_free", "list_read"), names(index.search("li", 10, false)));
+    }
+
+    @Test
+    public void scatteredCharacters() {
+        assertEquals("read_buf", names(index.search("rdbf", 10, false)).get(0));
+        assertEquals("parse_xml", names(index.search("PrsXml", 10, false)).get(0));
+        assertTrue(index.search("zzz", 10, false).isEmpty());
+    }
+
+    @Test
+    public void emptyQueryListsUpToTheLimit() {
+        assertEquals(7, index.search("", 100, false).size());
+        assertEquals(3, index.search("", 3, false).size());
+        assertTrue(index.search("", 0, false).isEmpty());
+    }
+
+    @Test
+    public void putReplacesTheApplication() {
+        index.put(new File("/b"), store(new File("/b/list.c"), "list_new"));
+        assertTrue(index.search("list_free", 10, false).isEmpty());
+        assertEquals("list_new", names(index.search("list", 10, false)).get(0));
+    }
+}
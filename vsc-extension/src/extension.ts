@@ -2,7 +2,7 @@
 
 
 import { Trace } from 'vscode-jsonrpc';
-import { workspace, ExtensionContext, window, commands } from 'vscode';
+import { workspace, ExtensionContext, window, commands, StatusBarAlignment } from 'vscode';
 import { LanguageClient, LanguageClientOptions } from 'vscode-languageclient';
 
 import { connectToRunningServer,  createServer } from './serverStarter';
@@ -44,6 +44,7 @@ export function activate(context: ExtensionContext) {
             let clientOptions: LanguageClientOptions = {
                 documentSelector: ['c'],
                 synchronize: {
+                    configurationSection: 'kt',
                     fileEvents: workspace.createFileSystemWatcher('**/*.*')
                 }
             };
@@ -56,6 +57,23 @@ export function activate(context: ExtensionContext) {
             lc.trace = Trace.Verbose;
             let disposable = lc.start();
 
+            // loading progress is reported as telemetry events
+            let status = window.createStatusBarItem(StatusBarAlignment.Left);
+            context.subscriptions.push(status);
+            lc.onReady().then(() => {
+                lc.onTelemetry(event => {
+                    if (!event || event.type !== 'kt/progress') {
+                        return;
+                    }
+                    if (event.stage === 'ready' && event.done >= event.total) {
+                        status.hide();
+                        return;
+                    }
+                    status.text = `KT Advance: ${event.stage} ${event.done}/${event.total}`;
+                    status.show();
+                });
+            });
+
             // Push the disposable to the context's subscriptions so that the 
             // client can be deactivated on extension deactivation    
             context.subscriptions.push(disposable);